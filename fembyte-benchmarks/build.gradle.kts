@@ -0,0 +1,30 @@
+plugins {
+    id("me.champeau.jmh") version "0.7.3"
+}
+
+dependencies {
+    // runtimeElements carries Minecraft, moonrise and the Mojang libraries the fixtures need
+    jmh(project(":fembyte-server", "runtimeElements"))
+}
+
+jmh {
+    warmupIterations = 3
+    iterations = 5
+    fork = 1
+    profilers = listOf("gc")
+    jvmArgs = listOf("-Xms2g", "-Xmx2g")
+}
+
+val densityEquivalence by tasks.registering(JavaExec::class) {
+    group = LifecycleBasePlugin.VERIFICATION_GROUP
+    description = "Checks that every random tick mode matches vanilla tick rates within tolerance."
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass = "com.dractical.fembyte.benchmarks.DensityEquivalenceHarness"
+    maxHeapSize = "2g"
+    // kept short so check stays fast, pass -PdensityEquivalenceTicks=2000000 for a thorough run
+    args(providers.gradleProperty("densityEquivalenceTicks").getOrElse("200000"))
+}
+
+tasks.named("check") {
+    dependsOn(densityEquivalence)
+}
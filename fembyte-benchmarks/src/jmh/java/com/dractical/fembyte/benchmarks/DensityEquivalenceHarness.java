@@ -0,0 +1,187 @@
+package com.dractical.fembyte.benchmarks;
+
+import ca.spottedleaf.moonrise.common.list.ShortList;
+import ca.spottedleaf.moonrise.common.util.SimpleThreadUnsafeRandom;
+import ca.spottedleaf.moonrise.patches.block_counting.BlockCountingChunkSection;
+import com.dractical.fembyte.config.modules.performance.RandomTickModule;
+import com.dractical.fembyte.perf.DensityTickSystem;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Runs every random tick mode and dispatch against synthetic sections for many game ticks and checks that
+// ticks per block and per section match vanilla's expectation, also with compensated LOD and with the budget
+// carrying lambda over. Run by check through the densityEquivalence task; exits non-zero when a mode drifts out of tolerance.
+public final class DensityEquivalenceHarness {
+
+    private static final int SECTION_VOLUME = 16 * 16 * 16;
+    private static final String[] MODES = {"VANILLA", "DENSITY_POISSON", "DENSITY_POISSON_KNUTH", "DENSITY_SMOOTHED_ACCUMULATOR"};
+    // a compensated LOD ring ticking every 4th game tick with 4x lambda
+    private static final int LOD_INTERVAL = 4;
+    // the budget runs out before the sections every 3rd game tick, so their lambda is carried into the next one
+    private static final int BUDGET_DEFER_EVERY = 3;
+    // tickSpeed, ticking blocks per section; kept below the max-lambda and max-ticks caps on purpose
+    private static final int[][] SCENARIOS = {{3, 64}, {3, 512}, {20, 1024}};
+    private static final int SECTIONS = 4;
+
+    // |z| limit for the per-section mean and the per-block chi-square statistic
+    private static final double MAX_Z = 5.0D;
+    // per-section variance relative to vanilla's binomial variance; Poisson sampling is expected to be a bit wider,
+    // SMOOTHED_ACCUMULATOR deliberately narrower, so it only gets the upper bound
+    private static final double MIN_VARIANCE_RATIO = 0.95D;
+    private static final double MAX_VARIANCE_RATIO = 1.5D;
+    private static final double MAX_SMOOTHED_VARIANCE_RATIO = 1.02D;
+
+    private DensityEquivalenceHarness() {
+    }
+
+    public static void main(final String[] args) {
+        final long gameTicks = args.length > 0 ? Long.parseLong(args[0]) : 2_000_000L;
+        final long seed = args.length > 1 ? Long.parseLong(args[1]) : 0x5EEDL;
+
+        SectionFixtures.bootstrap();
+        final List<String> failures = new ArrayList<>();
+        for (final int[] scenario : SCENARIOS) {
+            for (final String mode : MODES) {
+                for (final RandomTickModule.Dispatch dispatch : RandomTickModule.Dispatch.values()) {
+                    for (final Variant variant : Variant.values()) {
+                        // LOD and the budget only exist for density ticking
+                        if (variant != Variant.BASE && mode.equals("VANILLA")) {
+                            continue;
+                        }
+
+                        final Result result = run(mode, dispatch, variant, scenario[0], scenario[1], gameTicks, seed);
+                        System.out.println(result.describe());
+                        if (!result.passed()) {
+                            failures.add(result.label());
+                        }
+                    }
+                }
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            System.err.println("Random tick equivalence failed for: " + String.join(", ", failures));
+            System.exit(1);
+        }
+        System.out.println("Random tick equivalence passed.");
+    }
+
+    private static Result run(final String mode, final RandomTickModule.Dispatch dispatch, final Variant variant, final int tickSpeed,
+                              final int tickingBlocks, final long gameTicks, final long seed) {
+        DensityTickBenchmark.configure(mode);
+        RandomTickModule.DISPATCH = dispatch;
+
+        final LevelChunkSection[] sections = SectionFixtures.sections(SECTIONS, tickingBlocks, seed);
+        final long[] perBlock = new long[SECTIONS * SECTION_VOLUME];
+        final int[] perSectionThisTick = new int[SECTIONS];
+        final DensityTickSystem system = new DensityTickSystem((state, pos) -> {
+            final int section = pos.getY() >> 4;
+            ++perBlock[section * SECTION_VOLUME + (((pos.getY() & 15) << 8) | ((pos.getZ() & 15) << 4) | (pos.getX() & 15))];
+            ++perSectionThisTick[section];
+        }, new SimpleThreadUnsafeRandom(seed));
+
+        double sum = 0.0D;
+        double squareSum = 0.0D;
+        for (long tick = 0L; tick < gameTicks; tick++) {
+            switch (variant) {
+                case BASE -> system.tickSections(sections, 0, 0, 0, tickSpeed);
+                case LOD -> {
+                    if (tick % LOD_INTERVAL == 0L) {
+                        system.tickSections(sections, 0, 0, 0, tickSpeed, LOD_INTERVAL);
+                    }
+                }
+                case BUDGET -> {
+                    if (tick % BUDGET_DEFER_EVERY == 0L) {
+                        system.deferSections(sections, tickSpeed, 1.0D);
+                    } else {
+                        system.tickSections(sections, 0, 0, 0, tickSpeed);
+                    }
+                }
+            }
+            for (int i = 0; i < SECTIONS; i++) {
+                final int ticks = perSectionThisTick[i];
+                sum += ticks;
+                squareSum += (double) ticks * ticks;
+                perSectionThisTick[i] = 0;
+            }
+        }
+
+        final double samples = (double) gameTicks * SECTIONS;
+        final double mean = sum / samples;
+        final double variance = Math.max(0.0D, squareSum / samples - mean * mean);
+
+        final double p = (double) tickingBlocks / SECTION_VOLUME;
+        final double expectedMean = tickSpeed * p;
+        final double vanillaVariance = tickSpeed * p * (1.0D - p);
+        // LOD and carried lambda widen the per-tick spread, so the mean is judged against whichever variance is larger
+        final double meanZ = (mean - expectedMean) / Math.sqrt(Math.max(Math.max(variance, vanillaVariance), 1.0E-12D) / samples);
+
+        // chi-square of per-block totals against a uniform expectation, normalised to a z-score
+        final double expectedPerBlock = gameTicks * (double) tickSpeed / SECTION_VOLUME;
+        double chiSquare = 0.0D;
+        int blocks = 0;
+        for (int sectionIndex = 0; sectionIndex < SECTIONS; sectionIndex++) {
+            final ShortList tickList = ((BlockCountingChunkSection) sections[sectionIndex]).moonrise$getTickingBlockList();
+            for (int i = 0, len = tickList.size(); i < len; i++) {
+                final int location = (int) tickList.getRaw(i) & 0xFFFF;
+                final double delta = perBlock[sectionIndex * SECTION_VOLUME + location] - expectedPerBlock;
+                chiSquare += delta * delta / expectedPerBlock;
+                ++blocks;
+            }
+        }
+        final int degrees = Math.max(1, blocks - 1);
+        final double chiZ = (chiSquare - degrees) / Math.sqrt(2.0D * degrees);
+
+        return new Result(mode, dispatch, variant, tickSpeed, tickingBlocks, mean, expectedMean, meanZ, variance, vanillaVariance, chiSquare, degrees, chiZ);
+    }
+
+    private enum Variant {
+        BASE,
+        LOD,
+        BUDGET
+    }
+
+    private record Result(String mode, RandomTickModule.Dispatch dispatch, Variant variant, int tickSpeed, int tickingBlocks,
+                          double mean, double expectedMean, double meanZ, double variance, double vanillaVariance,
+                          double chiSquare, int degrees, double chiZ) {
+
+        String label() {
+            return this.mode + "/" + this.dispatch + "/" + this.variant + "[tickSpeed=" + this.tickSpeed + ", blocks=" + this.tickingBlocks + "]";
+        }
+
+        double varianceRatio() {
+            return this.vanillaVariance <= 0.0D ? 1.0D : this.variance / this.vanillaVariance;
+        }
+
+        boolean passed() {
+            return Math.abs(this.meanZ) <= MAX_Z
+                    && Math.abs(this.chiZ) <= MAX_Z
+                    && this.varianceInRange();
+        }
+
+        // LOD and carried lambda bunch ticks up on purpose, so only the base runs have a per-tick variance to match
+        private boolean varianceInRange() {
+            if (this.variant != Variant.BASE) {
+                return true;
+            }
+
+            final double ratio = this.varianceRatio();
+            if (this.mode.equals("DENSITY_SMOOTHED_ACCUMULATOR")) {
+                return ratio <= MAX_SMOOTHED_VARIANCE_RATIO;
+            }
+            return ratio >= MIN_VARIANCE_RATIO && ratio <= MAX_VARIANCE_RATIO;
+        }
+
+        String describe() {
+            return String.format(
+                    Locale.ROOT,
+                    "[%s] %-80s section mean=%.5f (expected %.5f, z=%+.2f) variance=%.5f (x%.3f vanilla) block chi2=%.1f/%d (z=%+.2f)",
+                    this.passed() ? "PASS" : "FAIL", this.label(), this.mean, this.expectedMean, this.meanZ,
+                    this.variance, this.varianceRatio(), this.chiSquare, this.degrees, this.chiZ
+            );
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.dractical.fembyte.benchmarks;
+
+import ca.spottedleaf.moonrise.common.util.SimpleThreadUnsafeRandom;
+import com.dractical.fembyte.config.modules.performance.RandomTickModule;
+import com.dractical.fembyte.perf.DensityTickSystem;
+import com.dractical.fembyte.perf.PoissonTable;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class DensityTickBenchmark {
+
+    private static final long SEED = 0x5EEDL;
+
+    @Param({"VANILLA", "DENSITY_POISSON", "DENSITY_POISSON_KNUTH", "DENSITY_SMOOTHED_ACCUMULATOR"})
+    public String mode;
+
+    @Param({"DIRECT", "GROUPED"})
+    public RandomTickModule.Dispatch dispatch;
+
+    @Param({"3", "20", "100"})
+    public int tickSpeed;
+
+    @Param({"16", "256", "4096"})
+    public int tickingBlocks;
+
+    @Param({"4", "24"})
+    public int sectionCount;
+
+    private LevelChunkSection[] sections;
+    private DensityTickSystem system;
+    private int ticksThisOp;
+
+    private long invocations;
+    private double tickSum;
+    private double tickSquareSum;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SectionFixtures.bootstrap();
+        configure(this.mode);
+        RandomTickModule.DISPATCH = this.dispatch;
+        this.sections = SectionFixtures.sections(this.sectionCount, this.tickingBlocks, SEED);
+        this.system = new DensityTickSystem((state, pos) -> ++this.ticksThisOp, new SimpleThreadUnsafeRandom(SEED));
+    }
+
+    @Benchmark
+    public int tick(final TickCounters counters) {
+        this.ticksThisOp = 0;
+        this.system.tickSections(this.sections, 0, 0, 0, this.tickSpeed);
+
+        final int ticks = this.ticksThisOp;
+        counters.randomTicks += ticks;
+        ++this.invocations;
+        this.tickSum += ticks;
+        this.tickSquareSum += (double) ticks * ticks;
+        return ticks;
+    }
+
+    @TearDown(Level.Trial)
+    public void report() {
+        if (this.invocations == 0L) {
+            return;
+        }
+
+        final double mean = this.tickSum / this.invocations;
+        final double variance = Math.max(0.0D, this.tickSquareSum / this.invocations - mean * mean);
+        System.out.printf(
+                Locale.ROOT,
+                "%n[random-tick] mode=%s dispatch=%s tickSpeed=%d tickingBlocks=%d sections=%d -> ticks/op mean=%.4f variance=%.4f (n=%d)%n",
+                this.mode, this.dispatch, this.tickSpeed, this.tickingBlocks, this.sectionCount, mean, variance, this.invocations
+        );
+    }
+
+    static void configure(final String mode) {
+        RandomTickModule.ENABLED = true;
+        switch (mode) {
+            case "VANILLA" -> RandomTickModule.MODE = RandomTickModule.Mode.VANILLA;
+            case "DENSITY_POISSON" -> {
+                RandomTickModule.MODE = RandomTickModule.Mode.DENSITY;
+                RandomTickModule.DENSITY_DISTRIBUTION = RandomTickModule.DensityDistribution.POISSON;
+                RandomTickModule.DENSITY_POISSON_SAMPLER = RandomTickModule.PoissonSampler.TABLE;
+            }
+            case "DENSITY_POISSON_KNUTH" -> {
+                RandomTickModule.MODE = RandomTickModule.Mode.DENSITY;
+                RandomTickModule.DENSITY_DISTRIBUTION = RandomTickModule.DensityDistribution.POISSON;
+                RandomTickModule.DENSITY_POISSON_SAMPLER = RandomTickModule.PoissonSampler.KNUTH;
+            }
+            case "DENSITY_SMOOTHED_ACCUMULATOR" -> {
+                RandomTickModule.MODE = RandomTickModule.Mode.DENSITY;
+                RandomTickModule.DENSITY_DISTRIBUTION = RandomTickModule.DensityDistribution.SMOOTHED_ACCUMULATOR;
+            }
+            default -> throw new IllegalArgumentException("Unknown random tick mode: " + mode);
+        }
+        PoissonTable.rebuild(RandomTickModule.DENSITY_MAX_LAMBDA, RandomTickModule.DENSITY_POISSON_TABLE_RESOLUTION);
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class TickCounters {
+        public long randomTicks;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.randomTicks = 0L;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.dractical.fembyte.benchmarks;
+
+import ca.spottedleaf.moonrise.common.util.SimpleThreadUnsafeRandom;
+import com.dractical.fembyte.config.modules.performance.RandomTickModule;
+import com.dractical.fembyte.perf.DensityTickSystem;
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Per tick garbage of random tick dispatch with and without dispatch-reuse-mutable-pos, read it from the
+// gc profiler's gc.alloc.rate.norm. The dispatcher keeps the last position like a block scheduling a tick
+// would, so escape analysis cannot remove the allocation.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class RandomTickAllocationBenchmark {
+
+    private static final long SEED = 0x5EEDL;
+
+    @Param({"VANILLA", "DENSITY_POISSON"})
+    public String mode;
+
+    @Param({"DIRECT", "GROUPED"})
+    public RandomTickModule.Dispatch dispatch;
+
+    @Param({"false", "true"})
+    public boolean reusePos;
+
+    @Param({"3", "100"})
+    public int tickSpeed;
+
+    private LevelChunkSection[] sections;
+    private DensityTickSystem system;
+    private BlockPos lastPos;
+    private int ticksThisOp;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SectionFixtures.bootstrap();
+        DensityTickBenchmark.configure(this.mode);
+        RandomTickModule.DISPATCH = this.dispatch;
+        RandomTickModule.DISPATCH_REUSE_MUTABLE_POS = this.reusePos;
+        this.sections = SectionFixtures.sections(24, 4096, SEED);
+        this.system = new DensityTickSystem((state, pos) -> {
+            this.lastPos = pos;
+            ++this.ticksThisOp;
+        }, new SimpleThreadUnsafeRandom(SEED));
+    }
+
+    @Benchmark
+    public int tick() {
+        this.ticksThisOp = 0;
+        this.system.tickSections(this.sections, 0, 0, 0, this.tickSpeed);
+        return this.ticksThisOp + (this.lastPos == null ? 0 : 1);
+    }
+}
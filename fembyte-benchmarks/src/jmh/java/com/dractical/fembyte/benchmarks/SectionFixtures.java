@@ -0,0 +1,89 @@
+package com.dractical.fembyte.benchmarks;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.PalettedContainer;
+
+import java.util.Random;
+
+public final class SectionFixtures {
+
+    private static final int SECTION_VOLUME = 16 * 16 * 16;
+
+    private static boolean bootstrapped;
+
+    private SectionFixtures() {
+    }
+
+    public static synchronized void bootstrap() {
+        if (bootstrapped) {
+            return;
+        }
+
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+        bootstrapped = true;
+    }
+
+    public static LevelChunkSection[] sections(final int count, final int tickingBlocks, final long seed) {
+        final Random random = new Random(seed);
+        final BlockState[] tickingStates = tickingStates();
+        final LevelChunkSection[] sections = new LevelChunkSection[count];
+        for (int i = 0; i < count; i++) {
+            sections[i] = section(tickingBlocks, tickingStates, random);
+        }
+        return sections;
+    }
+
+    private static LevelChunkSection section(final int tickingBlocks, final BlockState[] tickingStates, final Random random) {
+        final PalettedContainer<BlockState> states = new PalettedContainer<>(
+                Block.BLOCK_STATE_REGISTRY,
+                Blocks.AIR.defaultBlockState(),
+                PalettedContainer.Strategy.SECTION_STATES,
+                null
+        );
+        // biomes are never read by random ticking
+        final LevelChunkSection section = new LevelChunkSection(states, null);
+
+        final int[] locations = shuffledLocations(random);
+        final int count = Math.min(tickingBlocks, SECTION_VOLUME);
+        for (int i = 0; i < count; i++) {
+            final int location = locations[i];
+            section.setBlockState(
+                    location & 15,
+                    (location >>> 8) & 15,
+                    (location >>> 4) & 15,
+                    tickingStates[random.nextInt(tickingStates.length)],
+                    false
+            );
+        }
+        return section;
+    }
+
+    private static int[] shuffledLocations(final Random random) {
+        final int[] locations = new int[SECTION_VOLUME];
+        for (int i = 0; i < SECTION_VOLUME; i++) {
+            locations[i] = i;
+        }
+        for (int i = SECTION_VOLUME - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int tmp = locations[i];
+            locations[i] = locations[j];
+            locations[j] = tmp;
+        }
+        return locations;
+    }
+
+    private static BlockState[] tickingStates() {
+        return new BlockState[]{
+                Blocks.WHEAT.defaultBlockState(),
+                Blocks.GRASS_BLOCK.defaultBlockState(),
+                Blocks.OAK_SAPLING.defaultBlockState(),
+                Blocks.SUGAR_CANE.defaultBlockState(),
+        };
+    }
+}
@@ -2,7 +2,13 @@ package com.dractical.fembyte.command.sub;
 
 import com.dractical.fembyte.command.FembyteCommand;
 import com.dractical.fembyte.command.FembyteSubcommand;
+import com.dractical.fembyte.config.modules.performance.RandomTickModule;
+import com.dractical.fembyte.config.modules.performance.TickThrottleModule;
+import com.dractical.fembyte.perf.RandomTickFilter;
+import com.dractical.fembyte.perf.RandomTickMetrics;
 import com.dractical.fembyte.perf.TickThrottleManager;
+import io.papermc.paper.command.CommandUtil;
+import net.minecraft.core.registries.BuiltInRegistries;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.format.NamedTextColor;
 import org.bukkit.command.CommandSender;
@@ -11,6 +17,7 @@ import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.framework.qual.DefaultQualifier;
 
 import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 
 @DefaultQualifier(NonNull.class)
@@ -18,6 +25,9 @@ public class FembyteStatusCommand extends FembyteSubcommand {
 
     public static final String NAME = "status";
     public static final String PERM = FembyteCommand.BASE_PERM + "." + NAME;
+    private static final String RANDOM_TICK = "randomtick";
+    private static final String RESET = "reset";
+    private static final int TOP_BLOCKS = 8;
 
     public FembyteStatusCommand() {
         super(NAME, Collections.emptyList(), PERM, PermissionDefault.OP);
@@ -25,32 +35,138 @@ public class FembyteStatusCommand extends FembyteSubcommand {
 
     @Override
     public boolean execute(final CommandSender sender, final String label, final String[] args) {
-        final TickThrottleManager.TickThrottleMetrics metrics = TickThrottleManager.get().snapshotMetrics();
+        if (args.length > 0 && args[0].equalsIgnoreCase(RANDOM_TICK)) {
+            if (args.length > 1 && args[1].equalsIgnoreCase(RESET)) {
+                RandomTickMetrics.reset();
+                sender.sendMessage(Component.text("Random tick metrics reset.", NamedTextColor.GREEN));
+                return true;
+            }
+            return this.executeRandomTick(sender);
+        }
+
+        final List<TickThrottleManager.TickThrottleMetrics> worlds = TickThrottleManager.get().snapshotMetrics();
         sender.sendMessage(Component.text("Tick Throttle", NamedTextColor.AQUA));
-        if (!metrics.enabled()) {
-            sender.sendMessage(Component.text("  Module disabled.", NamedTextColor.GRAY));
+        if (worlds.isEmpty()) {
+            sender.sendMessage(Component.text("  No worlds ticked yet.", NamedTextColor.GRAY));
             return true;
         }
 
-        sender.sendMessage(Component.text("  TPS: ", NamedTextColor.GRAY)
-                .append(Component.text(formatDouble(metrics.currentTps()) + " / 20.0", NamedTextColor.GREEN)));
+        for (final TickThrottleManager.TickThrottleMetrics metrics : worlds) {
+            this.sendWorld(sender, metrics);
+        }
+        return true;
+    }
+
+    private void sendWorld(final CommandSender sender, final TickThrottleManager.TickThrottleMetrics metrics) {
+        sender.sendMessage(Component.text("  " + metrics.world(), NamedTextColor.WHITE)
+                .append(Component.text(" (" + metrics.mode().name() + ", " + formatDouble(metrics.sampleMspt()) + " mspt last tick)", NamedTextColor.DARK_GRAY)));
+        if (!metrics.enabled()) {
+            sender.sendMessage(Component.text("    Throttling disabled.", NamedTextColor.GRAY));
+            return;
+        }
+
+        sender.sendMessage(Component.text("    TPS: ", NamedTextColor.GRAY)
+                .append(Component.text(formatDouble(metrics.currentTps()) + " / 20.0", NamedTextColor.GREEN))
+                .append(Component.text(" (slow avg " + formatDouble(metrics.releaseTps()) + ")", NamedTextColor.DARK_GRAY)));
+        if (metrics.predictedMspt() >= 0.0D) {
+            sender.sendMessage(Component.text("    Budget: ", NamedTextColor.GRAY)
+                    .append(Component.text(formatDouble(metrics.predictedMspt()) + " / " + formatDouble(TickThrottleModule.settingsFor(metrics.world()).budgetTargetMspt()) + " mspt predicted", NamedTextColor.GREEN)));
+        }
 
         final NamedTextColor randomColor = metrics.randomTickScale() < 0.999D ? NamedTextColor.GOLD : NamedTextColor.GREEN;
-        sender.sendMessage(Component.text("  Random ticks: ", NamedTextColor.GRAY)
+        sender.sendMessage(Component.text("    Random ticks: ", NamedTextColor.GRAY)
                 .append(Component.text(formatPercent(metrics.randomTickScale()), randomColor))
                 .append(Component.text(" (" + metrics.randomTicksSuppressed() + " suppressed)", NamedTextColor.DARK_GRAY)));
 
-        sender.sendMessage(Component.text("  Passive mobs: ", NamedTextColor.GRAY)
-                .append(Component.text(formatInterval(metrics.passiveInterval(), metrics.passiveTickingThisRound()), NamedTextColor.YELLOW))
+        sender.sendMessage(Component.text("    Passive mobs: ", NamedTextColor.GRAY)
+                .append(Component.text(formatInterval(metrics.passiveInterval()), NamedTextColor.YELLOW))
                 .append(Component.text(" (" + metrics.passiveTicksSuppressed() + " skipped)", NamedTextColor.DARK_GRAY)));
 
-        sender.sendMessage(Component.text("  Hostile mobs: ", NamedTextColor.GRAY)
-                .append(Component.text(formatInterval(metrics.hostileInterval(), metrics.hostileTickingThisRound()), NamedTextColor.YELLOW))
+        sender.sendMessage(Component.text("    Hostile mobs: ", NamedTextColor.GRAY)
+                .append(Component.text(formatInterval(metrics.hostileInterval()), NamedTextColor.YELLOW))
                 .append(Component.text(" (" + metrics.hostileTicksSuppressed() + " skipped)", NamedTextColor.DARK_GRAY)));
 
+        sender.sendMessage(Component.text("    Villager brains: ", NamedTextColor.GRAY)
+                .append(Component.text(formatInterval(metrics.villagerInterval()), NamedTextColor.YELLOW))
+                .append(Component.text(" (" + metrics.villagerBrainTicksSuppressed() + " skipped, idle villagers 1 in " + TickThrottleModule.VILLAGER_IDLE_INTERVAL + ")", NamedTextColor.DARK_GRAY)));
+
+        sender.sendMessage(Component.text("    Block entities: ", NamedTextColor.GRAY)
+                .append(Component.text(formatInterval(metrics.blockEntityInterval()), NamedTextColor.YELLOW))
+                .append(Component.text(" (" + metrics.blockEntityTicksSuppressed() + " skipped)", NamedTextColor.DARK_GRAY)));
+
+        if (metrics.sliceWindow() >= 0) {
+            sender.sendMessage(Component.text("    Entity slice: ", NamedTextColor.GRAY)
+                    .append(Component.text(metrics.sliceWindow() + " of " + metrics.slicePositions() + " mobs per tick", metrics.sliceWindow() < metrics.slicePositions() ? NamedTextColor.GOLD : NamedTextColor.GREEN))
+                    .append(Component.text(" (" + metrics.slicedTicksSuppressed() + " deferred)", NamedTextColor.DARK_GRAY)));
+        }
+
+        if (metrics.distanceSteps() > 0) {
+            sender.sendMessage(Component.text("    Distances: ", NamedTextColor.GRAY)
+                    .append(Component.text("simulation " + metrics.simulationDistance() + ", view " + metrics.viewDistance(), NamedTextColor.GOLD))
+                    .append(Component.text(" (lowered " + metrics.distanceSteps() + " steps)", NamedTextColor.DARK_GRAY)));
+        }
+
+        final boolean capped = metrics.scheduledTickLimit() != Integer.MAX_VALUE;
+        sender.sendMessage(Component.text("    Scheduled ticks: ", NamedTextColor.GRAY)
+                .append(Component.text(capped ? "max " + metrics.scheduledTickLimit() + " per tick (rest carried over)" : "uncapped", capped ? NamedTextColor.GOLD : NamedTextColor.GREEN)));
+    }
+
+    private boolean executeRandomTick(final CommandSender sender) {
+        sender.sendMessage(Component.text("Random Ticking", NamedTextColor.AQUA));
+        sender.sendMessage(Component.text("  Mode: ", NamedTextColor.GRAY)
+                .append(Component.text(RandomTickModule.ENABLED ? RandomTickModule.MODE.name() : "VANILLA (module disabled)", NamedTextColor.GREEN))
+                .append(Component.text(" / " + RandomTickModule.DENSITY_DISTRIBUTION.name() + ", " + RandomTickFilter.inertStates() + " inert states", NamedTextColor.DARK_GRAY)));
+        if (!RandomTickMetrics.enabled()) {
+            sender.sendMessage(Component.text("  Metrics disabled (performance.random-tick.metrics).", NamedTextColor.GRAY));
+            return true;
+        }
+
+        for (final RandomTickMetrics.WorldSnapshot world : RandomTickMetrics.snapshotWorlds(TOP_BLOCKS)) {
+            final double nanosPerChunk = world.chunks() == 0L ? 0.0D : (double) world.nanos() / world.chunks();
+            sender.sendMessage(Component.text("  " + world.world() + ": ", NamedTextColor.GRAY)
+                    .append(Component.text(formatMillis(world.nanos()) + " total", NamedTextColor.YELLOW))
+                    .append(Component.text(" (" + formatDouble(nanosPerChunk / 1000.0D) + "us/chunk, " + world.sampled() + " sampled, " + world.applied() + " applied)", NamedTextColor.DARK_GRAY)));
+
+            world.drift().forEach((distribution, drift) -> {
+                if (drift.expected() <= 0.0D) {
+                    return;
+                }
+                sender.sendMessage(Component.text("    " + distribution.name() + " drift: ", NamedTextColor.GRAY)
+                        .append(Component.text(formatSignedPercent(drift.relative()), NamedTextColor.YELLOW))
+                        .append(Component.text(" (" + drift.ticks() + " rolled / " + formatDouble(drift.expected()) + " expected)", NamedTextColor.DARK_GRAY)));
+            });
+
+            if (!world.topBlocks().isEmpty()) {
+                sender.sendMessage(Component.text("    Top blocks:", NamedTextColor.GRAY));
+                for (final RandomTickMetrics.BlockSnapshot block : world.topBlocks()) {
+                    sender.sendMessage(Component.text("      " + BuiltInRegistries.BLOCK.getKey(block.block()) + ": ", NamedTextColor.GRAY)
+                            .append(Component.text(block.applied(), NamedTextColor.YELLOW)));
+                }
+            }
+        }
+
         return true;
     }
 
+    @Override
+    public List<String> tabComplete(final CommandSender sender, final String label, final String[] args) {
+        if (args.length == 1) {
+            return CommandUtil.getListMatchingLast(sender, args, RANDOM_TICK);
+        }
+        if (args.length == 2 && args[0].equalsIgnoreCase(RANDOM_TICK)) {
+            return CommandUtil.getListMatchingLast(sender, args, RESET);
+        }
+        return Collections.emptyList();
+    }
+
+    private static String formatMillis(final long nanos) {
+        return String.format(Locale.US, "%.1fms", nanos / 1_000_000.0D);
+    }
+
+    private static String formatSignedPercent(final double value) {
+        return String.format(Locale.US, "%+.2f%%", value * 100.0D);
+    }
+
     private static String formatDouble(final double value) {
         return String.format(Locale.US, "%.2f", value);
     }
@@ -59,11 +175,10 @@ public class FembyteStatusCommand extends FembyteSubcommand {
         return String.format(Locale.US, "%.0f%%", value * 100.0D);
     }
 
-    private static String formatInterval(final int interval, final boolean tickingThisRound) {
+    private static String formatInterval(final int interval) {
         if (interval <= 1) {
             return "every tick";
         }
-        final String cadence = "1 in " + interval + " ticks";
-        return cadence + (tickingThisRound ? " (processing)" : " (deferred)");
+        return "1 in " + interval + " ticks (staggered)";
     }
 }
@@ -2,6 +2,11 @@ package com.dractical.fembyte.concurrent.chunk;
 
 import com.dractical.fembyte.concurrent.Async;
 import com.dractical.fembyte.config.modules.async.ChunkSendModule;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOutboundBuffer;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectHeapPriorityQueue;
 import net.minecraft.network.protocol.game.ClientboundLevelChunkWithLightPacket;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.server.level.ServerPlayer;
@@ -13,18 +18,32 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public final class AsyncChunkSendDispatcher {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AsyncChunkSendDispatcher.class);
     private static final ConcurrentHashMap<UUID, PlayerContext> CONTEXTS = new ConcurrentHashMap<>();
     private static final AtomicInteger GLOBAL_IN_FLIGHT = new AtomicInteger();
+    // players with queued chunks, drained on the main thread whenever a slot frees up
+    private static final Set<PlayerContext> WAITING = ConcurrentHashMap.newKeySet();
+    private static final AtomicBoolean DRAIN_SCHEDULED = new AtomicBoolean();
+    private static final AtomicInteger DRAIN_ROUND = new AtomicInteger();
+    private static final Duration BACKPRESSURE_RETRY = Duration.ofMillis(50L);
+    // queued chunks are re-prioritised once the player changes chunk or turns into another of these sectors
+    private static final int VIEW_SECTORS = 16;
+    private static final Comparator<QueuedChunk> BY_SCORE = Comparator.comparingDouble(chunk -> chunk.score);
 
     private AsyncChunkSendDispatcher() {
     }
@@ -43,11 +62,8 @@ public final class AsyncChunkSendDispatcher {
         return context.enqueue(level, chunk, connection);
     }
 
+    // also called while disabled, so chunks queued before a reload are still dropped
     public static void cancel(ServerPlayer player, int chunkX, int chunkZ) {
-        if (!ChunkSendModule.ENABLED || !ChunkSendModule.CANCEL_ON_UNLOAD) {
-            return;
-        }
-
         PlayerContext context = CONTEXTS.get(player.getUUID());
         if (context != null) {
             context.cancel(ChunkPos.asLong(chunkX, chunkZ));
@@ -57,10 +73,32 @@ public final class AsyncChunkSendDispatcher {
     public static void remove(ServerPlayer player) {
         PlayerContext context = CONTEXTS.remove(player.getUUID());
         if (context != null) {
+            WAITING.remove(context);
             context.destroy();
         }
     }
 
+    private static void scheduleDrain() {
+        if (!WAITING.isEmpty() && DRAIN_SCHEDULED.compareAndSet(false, true)) {
+            Async.onMain(AsyncChunkSendDispatcher::drainWaiting);
+        }
+    }
+
+    // one chunk per player and round, starting at a different player each time, so the first players in the set
+    // cannot take every free global slot
+    private static void drainWaiting() {
+        DRAIN_SCHEDULED.set(false);
+        List<PlayerContext> players = new ArrayList<>(WAITING);
+        if (players.isEmpty()) {
+            return;
+        }
+
+        Collections.rotate(players, -Math.floorMod(DRAIN_ROUND.getAndIncrement(), players.size()));
+        while (!players.isEmpty()) {
+            players.removeIf(context -> !context.drainOne());
+        }
+    }
+
     private static boolean reserveGlobalSlot() {
         int limit = ChunkSendModule.MAX_GLOBAL_IN_FLIGHT;
         if (limit <= 0) {
@@ -83,21 +121,70 @@ public final class AsyncChunkSendDispatcher {
         GLOBAL_IN_FLIGHT.updateAndGet(value -> Math.max(0, value - 1));
     }
 
-    private static CompletableFuture<ClientboundLevelChunkWithLightPacket> preparePacket(
+    private static CompletableFuture<PreparedChunkPacket> preparePacket(
             ServerGamePacketListenerImpl connection,
             ServerLevel level,
             LevelChunk chunk
     ) {
+        // anti-xray packets are obfuscated per send and can neither be shared nor encoded ahead; with snapshots they
+        // are built on the main thread like vanilla does, anti-xray moves its own work off the main thread
+        if (level.chunkPacketBlockController.shouldModify(connection.player, chunk)) {
+            if (ChunkSendModule.SNAPSHOT) {
+                return CompletableFuture.completedFuture(PreparedChunkPacket.of(PlayerChunkSender.buildChunkPacket(connection, level, chunk)));
+            }
+            return supply(() -> PreparedChunkPacket.of(PlayerChunkSender.buildChunkPacket(connection, level, chunk)));
+        }
+
+        boolean encode = ChunkSendModule.PRE_ENCODE;
+        int threshold = encode ? connection.connection.fembyte$compressionThreshold() : -1;
+        Supplier<CompletableFuture<PreparedChunkPacket>> build = () -> {
+            // taken when preparation starts, so chunks waiting in the queue do not hold on to outdated copies
+            ChunkSnapshot snapshot = ChunkSendModule.SNAPSHOT ? ChunkSnapshot.capture(level, chunk) : null;
+            return supply(() -> {
+                ClientboundLevelChunkWithLightPacket packet = snapshot != null ? snapshot.build() : PlayerChunkSender.buildChunkPacket(connection, level, chunk);
+                return encode ? PreparedChunkPacket.encode(packet, connection.connection.fembyte$outboundProtocol(), threshold) : PreparedChunkPacket.of(packet);
+            });
+        };
+        if (!ChunkSendModule.PACKET_CACHE) {
+            return build.get();
+        }
+
+        // a shared packet may have been compressed for another threshold only, add this connection's off the main thread
+        return ChunkPacketCache.getOrPrepare(level, chunk, build).thenCompose(prepared -> {
+            if (!encode || !prepared.encoded() || prepared.hasFrame(threshold)) {
+                return CompletableFuture.completedFuture(prepared);
+            }
+            return supply(() -> {
+                prepared.frame(threshold);
+                return prepared;
+            });
+        });
+    }
+
+    private static <T> CompletableFuture<T> supply(Supplier<T> supplier) {
         return switch (ChunkSendModule.EXECUTOR) {
-            case VIRTUAL -> Async.supplyVirtual(() -> PlayerChunkSender.buildChunkPacket(connection, level, chunk));
-            case CPU -> Async.supplyCpu(() -> PlayerChunkSender.buildChunkPacket(connection, level, chunk));
+            case VIRTUAL -> Async.supplyVirtual(supplier);
+            case CPU -> Async.supplyCpu(supplier);
         };
     }
 
     private static final class PlayerContext {
         private final ServerPlayer player;
         private final AtomicInteger inFlight = new AtomicInteger();
+        // AIMD window: grows by one per window of timely sends, halves on backpressure; written on the event loop
+        private volatile double limit = ChunkSendModule.MAX_IN_FLIGHT_PER_PLAYER;
+        private long lastDecreaseNanos = Long.MIN_VALUE;
+        private final AtomicBoolean retryScheduled = new AtomicBoolean();
         private final ConcurrentHashMap<Long, PendingTask> tasks = new ConcurrentHashMap<>();
+        // chunks waiting for a free slot and their send order, main thread only; cancelled chunks stay in the
+        // heap until they are polled or the heap is rebuilt
+        private final Long2ObjectOpenHashMap<QueuedChunk> queued = new Long2ObjectOpenHashMap<>();
+        private ObjectHeapPriorityQueue<QueuedChunk> order = new ObjectHeapPriorityQueue<>(BY_SCORE);
+        private int scoredChunkX = Integer.MIN_VALUE;
+        private int scoredChunkZ;
+        private int scoredSector;
+        private double lookX;
+        private double lookZ;
 
         private PlayerContext(ServerPlayer player) {
             this.player = player;
@@ -105,32 +192,118 @@ public final class AsyncChunkSendDispatcher {
 
         boolean enqueue(ServerLevel level, LevelChunk chunk, ServerGamePacketListenerImpl connection) {
             long chunkKey = chunk.getPos().toLong();
-            if (this.tasks.containsKey(chunkKey)) {
+            if (this.tasks.containsKey(chunkKey) || this.queued.containsKey(chunkKey)) {
                 return true;
             }
 
-            if (!reservePerPlayerSlot(this.inFlight)) {
-                return false;
+            // a full pool queues the chunk instead of handing it back for a sync send on the main thread
+            QueuedChunk queuedChunk = new QueuedChunk(chunkKey, level, chunk, connection);
+            this.queued.put(chunkKey, queuedChunk);
+            if (this.scoredChunkX != Integer.MIN_VALUE) {
+                queuedChunk.score = this.score(chunkKey);
             }
+            this.order.enqueue(queuedChunk);
+            this.drain();
+            return true;
+        }
 
+        void drain() {
+            while (this.drainOne()) {
+            }
+        }
+
+        // starts the next queued chunk, false once the queue is empty or the player has to wait for a slot
+        boolean drainOne() {
+            if (this.queued.isEmpty()) {
+                WAITING.remove(this);
+                return false;
+            }
+            if (this.backpressured()) {
+                // nothing may be in flight to trigger the next drain, poll until the channel recovers
+                WAITING.add(this);
+                this.scheduleRetry();
+                return false;
+            }
+            if (!this.reservePerPlayerSlot()) {
+                WAITING.add(this);
+                return false;
+            }
             if (!reserveGlobalSlot()) {
-                this.inFlight.decrementAndGet();
+                releasePerPlayerSlot();
+                WAITING.add(this);
                 return false;
             }
 
-            PendingTask task = new PendingTask(chunkKey, level, chunk, connection, this);
-            PendingTask previous = this.tasks.putIfAbsent(chunkKey, task);
-            if (previous != null) {
+            QueuedChunk next = this.nextChunk();
+            long chunkKey = next.chunkKey;
+            this.queued.remove(chunkKey);
+            if (!next.connection.isAcceptingMessages() || this.tasks.containsKey(chunkKey)) {
+                releasePerPlayerSlot();
                 releaseGlobalSlot();
-                this.inFlight.decrementAndGet();
                 return true;
             }
 
+            PendingTask task = new PendingTask(chunkKey, next.level, next.chunk, next.connection, this);
+            this.tasks.put(chunkKey, task);
             task.start();
             return true;
         }
 
+        // nearest chunk first, chunks directly behind the player count as (1 + view-direction-bias) times as far away
+        private QueuedChunk nextChunk() {
+            int playerX = this.player.getBlockX() >> 4;
+            int playerZ = this.player.getBlockZ() >> 4;
+            int sector = Math.floorMod((int) Math.floor(this.player.getYRot() * VIEW_SECTORS / 360.0F + 0.5F), VIEW_SECTORS);
+            if (playerX != this.scoredChunkX || playerZ != this.scoredChunkZ || sector != this.scoredSector) {
+                this.rescore(playerX, playerZ, sector);
+            }
+
+            while (true) {
+                QueuedChunk next = this.order.dequeue();
+                if (this.queued.get(next.chunkKey) == next) {
+                    return next;
+                }
+            }
+        }
+
+        private void rescore(int playerX, int playerZ, int sector) {
+            this.scoredChunkX = playerX;
+            this.scoredChunkZ = playerZ;
+            this.scoredSector = sector;
+            double yaw = Math.toRadians(sector * (360.0D / VIEW_SECTORS));
+            this.lookX = -Math.sin(yaw);
+            this.lookZ = Math.cos(yaw);
+
+            QueuedChunk[] chunks = this.queued.values().toArray(new QueuedChunk[0]);
+            for (QueuedChunk chunk : chunks) {
+                chunk.score = this.score(chunk.chunkKey);
+            }
+            this.order = new ObjectHeapPriorityQueue<>(chunks, chunks.length, BY_SCORE);
+        }
+
+        private double score(long chunkKey) {
+            int dx = ChunkPos.getX(chunkKey) - this.scoredChunkX;
+            int dz = ChunkPos.getZ(chunkKey) - this.scoredChunkZ;
+            double distance = Math.sqrt(dx * dx + dz * dz);
+            if (distance <= 0.0D) {
+                return 0.0D;
+            }
+
+            double bias = Math.max(0.0D, ChunkSendModule.VIEW_DIRECTION_BIAS);
+            double facing = (dx * this.lookX + dz * this.lookZ) / distance;
+            return distance * (1.0D + bias * (1.0D - facing) * 0.5D);
+        }
+
         void cancel(long chunkKey) {
+            // queued chunks are always dropped, they would otherwise be sent after the client forgot the chunk
+            if (this.queued.remove(chunkKey) != null && this.queued.isEmpty()) {
+                this.order.clear();
+                WAITING.remove(this);
+            }
+            if (!ChunkSendModule.CANCEL_ON_UNLOAD) {
+                return;
+            }
+
             PendingTask task = this.tasks.get(chunkKey);
             if (task != null) {
                 task.cancel();
@@ -138,37 +311,95 @@ public final class AsyncChunkSendDispatcher {
         }
 
         void destroy() {
+            this.queued.clear();
+            this.order.clear();
             for (PendingTask task : this.tasks.values()) {
                 task.cancel();
             }
             this.tasks.clear();
         }
 
-        private static boolean reservePerPlayerSlot(AtomicInteger counter) {
-            int limit = ChunkSendModule.MAX_IN_FLIGHT_PER_PLAYER;
+        private boolean reservePerPlayerSlot() {
+            int limit = ChunkSendModule.ADAPTIVE_IN_FLIGHT ? (int) this.clampedLimit() : ChunkSendModule.MAX_IN_FLIGHT_PER_PLAYER;
             while (true) {
-                int current = counter.get();
+                int current = this.inFlight.get();
                 if (limit > 0 && current >= limit) {
                     return false;
                 }
-                if (counter.compareAndSet(current, current + 1)) {
+                if (this.inFlight.compareAndSet(current, current + 1)) {
                     return true;
                 }
             }
         }
 
+        private double clampedLimit() {
+            int min = Math.max(1, ChunkSendModule.ADAPTIVE_MIN_IN_FLIGHT);
+            return Math.max(min, Math.min(Math.max(min, ChunkSendModule.ADAPTIVE_MAX_IN_FLIGHT), this.limit));
+        }
+
+        private boolean backpressured() {
+            if (!ChunkSendModule.ADAPTIVE_IN_FLIGHT) {
+                return false;
+            }
+
+            ServerGamePacketListenerImpl connection = this.player.connection;
+            Channel channel = connection == null ? null : connection.connection.fembyte$channel();
+            return channel != null && (!channel.isWritable() || pendingBytes(channel) > ChunkSendModule.ADAPTIVE_MAX_PENDING_BYTES);
+        }
+
+        private void scheduleRetry() {
+            if (this.retryScheduled.compareAndSet(false, true)) {
+                Async.schedule(() -> {
+                    this.retryScheduled.set(false);
+                    scheduleDrain();
+                }, BACKPRESSURE_RETRY);
+            }
+        }
+
+        // completes on the event loop once the chunk's write is done, so latency covers preparation, the main thread
+        // and the write itself, while writability and pending bytes show how fast the client drains the socket
+        private ChannelFutureListener trackFlush(long startNanos) {
+            if (!ChunkSendModule.ADAPTIVE_IN_FLIGHT) {
+                return null;
+            }
+
+            return future -> {
+                Channel channel = future.channel();
+                long now = System.nanoTime();
+                long latency = now - startNanos;
+                long target = Math.max(1L, ChunkSendModule.ADAPTIVE_TARGET_LATENCY_MS) * 1_000_000L;
+                double limit = this.clampedLimit();
+                if (!channel.isWritable() || pendingBytes(channel) > ChunkSendModule.ADAPTIVE_MAX_PENDING_BYTES || latency > target) {
+                    // at most one decrease per target latency, the sends already in flight carry the same signal
+                    if (this.lastDecreaseNanos == Long.MIN_VALUE || now - this.lastDecreaseNanos >= target) {
+                        this.limit = limit * 0.5D;
+                        this.lastDecreaseNanos = now;
+                    }
+                } else {
+                    this.limit = limit + 1.0D / limit;
+                }
+                scheduleDrain();
+            };
+        }
+
+        private static long pendingBytes(Channel channel) {
+            ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+            return buffer == null ? 0L : buffer.totalPendingWriteBytes();
+        }
+
         private void releasePerPlayerSlot() {
             this.inFlight.updateAndGet(value -> Math.max(0, value - 1));
         }
 
         private void handleCompletion(
                 PendingTask task,
-                ClientboundLevelChunkWithLightPacket packet,
+                PreparedChunkPacket prepared,
                 Throwable error
         ) {
             this.tasks.remove(task.chunkKey, task);
             releasePerPlayerSlot();
             releaseGlobalSlot();
+            scheduleDrain();
 
             if (task.cancelled.get()) {
                 return;
@@ -203,7 +434,17 @@ public final class AsyncChunkSendDispatcher {
                 if (!task.connection.isAcceptingMessages()) {
                     return;
                 }
-                PlayerChunkSender.sendBuiltChunk(task.connection, task.level, task.chunk, packet);
+                ChannelFutureListener flushed = this.trackFlush(task.startNanos);
+                if (ChunkSendModule.PRE_ENCODE && prepared.encoded()) {
+                    int threshold = task.connection.connection.fembyte$compressionThreshold();
+                    byte[] frame = prepared.frame(threshold);
+                    if (frame != null && task.connection.connection.fembyte$sendEncoded(prepared.packet(), threshold, frame, flushed)) {
+                        PlayerChunkSender.onChunkSent(task.connection, task.level, task.chunk);
+                        return;
+                    }
+                }
+                task.connection.send(prepared.packet(), flushed);
+                PlayerChunkSender.onChunkSent(task.connection, task.level, task.chunk);
             };
 
             if (ChunkSendModule.SEND_ON_MAIN_THREAD) {
@@ -214,6 +455,21 @@ public final class AsyncChunkSendDispatcher {
         }
     }
 
+    private static final class QueuedChunk {
+        private final long chunkKey;
+        private final ServerLevel level;
+        private final LevelChunk chunk;
+        private final ServerGamePacketListenerImpl connection;
+        private double score;
+
+        private QueuedChunk(long chunkKey, ServerLevel level, LevelChunk chunk, ServerGamePacketListenerImpl connection) {
+            this.chunkKey = chunkKey;
+            this.level = level;
+            this.chunk = chunk;
+            this.connection = connection;
+        }
+    }
+
     private static final class PendingTask {
         private final long chunkKey;
         private final ServerLevel level;
@@ -221,7 +477,8 @@ public final class AsyncChunkSendDispatcher {
         private final ServerGamePacketListenerImpl connection;
         private final PlayerContext owner;
         private final AtomicBoolean cancelled = new AtomicBoolean();
-        private volatile CompletableFuture<ClientboundLevelChunkWithLightPacket> future;
+        private final long startNanos = System.nanoTime();
+        private volatile CompletableFuture<PreparedChunkPacket> future;
         private volatile ScheduledFuture<?> timeout;
 
         private PendingTask(
@@ -239,7 +496,7 @@ public final class AsyncChunkSendDispatcher {
         }
 
         private void start() {
-            CompletableFuture<ClientboundLevelChunkWithLightPacket> preparation;
+            CompletableFuture<PreparedChunkPacket> preparation;
             try {
                 preparation = preparePacket(this.connection, this.level, this.chunk);
             } catch (Throwable throwable) {
@@ -262,8 +519,9 @@ public final class AsyncChunkSendDispatcher {
             }
 
             this.timeout = Async.schedule(() -> {
-                if (this.cancelled.compareAndSet(false, true)) {
-                    CompletableFuture<ClientboundLevelChunkWithLightPacket> prep = this.future;
+                // not marked cancelled: Paper already counts the chunk as sent, so it falls back to a sync send
+                if (!this.cancelled.get()) {
+                    CompletableFuture<PreparedChunkPacket> prep = this.future;
                     if (prep != null) {
                         prep.cancel(true);
                     }
@@ -284,7 +542,7 @@ public final class AsyncChunkSendDispatcher {
             }
 
             cancelTimeout();
-            CompletableFuture<ClientboundLevelChunkWithLightPacket> preparation = this.future;
+            CompletableFuture<PreparedChunkPacket> preparation = this.future;
             if (preparation != null) {
                 preparation.cancel(true);
             }
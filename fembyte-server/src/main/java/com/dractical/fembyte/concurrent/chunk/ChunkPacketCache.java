@@ -0,0 +1,92 @@
+package com.dractical.fembyte.concurrent.chunk;
+
+import com.dractical.fembyte.concurrent.Async;
+import com.dractical.fembyte.config.modules.async.ChunkSendModule;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.chunk.LevelChunk;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// Shares chunk packets between players. An entry is reused while the chunk object is the same and its packet
+// version, bumped on every block, block entity, biome and light change, has not moved. Players asking while the
+// packet is still being built join the same preparation.
+final class ChunkPacketCache {
+
+    private static final ConcurrentHashMap<Key, Entry> ENTRIES = new ConcurrentHashMap<>();
+    private static final Duration PURGE_PERIOD = Duration.ofSeconds(5L);
+
+    static {
+        // entries hold on to their chunk, drop expired ones even when nobody asks for new packets
+        Async.scheduleAtFixedRate(() -> ENTRIES.values().removeIf(entry -> entry.expired(System.nanoTime())), PURGE_PERIOD, PURGE_PERIOD);
+    }
+
+    private ChunkPacketCache() {
+    }
+
+    // callers get their own copy of the shared future, so cancelling one player's send leaves the others alone
+    static CompletableFuture<PreparedChunkPacket> getOrPrepare(
+            ServerLevel level,
+            LevelChunk chunk,
+            Supplier<CompletableFuture<PreparedChunkPacket>> prepare
+    ) {
+        Key key = new Key(level, chunk.getPos().toLong());
+        int version = chunk.fembyte$packetVersion;
+        long now = System.nanoTime();
+        Entry entry = ENTRIES.get(key);
+        if (entry != null && entry.reusable(chunk, version, now)) {
+            return entry.future.copy();
+        }
+
+        Entry created = new Entry(chunk, version, now, prepare.get());
+        ENTRIES.put(key, created);
+        created.future.whenComplete((packet, throwable) -> {
+            if (throwable != null) {
+                ENTRIES.remove(key, created);
+            }
+        });
+
+        if (ENTRIES.size() > Math.max(1, ChunkSendModule.PACKET_CACHE_MAX_ENTRIES)) {
+            trim(now);
+        }
+        return created.future.copy();
+    }
+
+    private static void trim(long now) {
+        ENTRIES.values().removeIf(entry -> entry.expired(now));
+
+        int excess = ENTRIES.size() - Math.max(1, ChunkSendModule.PACKET_CACHE_MAX_ENTRIES) * 3 / 4;
+        Iterator<Entry> iterator = ENTRIES.values().iterator();
+        while (excess > 0 && iterator.hasNext()) {
+            if (iterator.next().future.isDone()) {
+                iterator.remove();
+                excess--;
+            }
+        }
+    }
+
+    private record Key(ServerLevel level, long chunk) {
+    }
+
+    private record Entry(
+            LevelChunk chunk,
+            int version,
+            long createdNanos,
+            CompletableFuture<PreparedChunkPacket> future
+    ) {
+        boolean reusable(LevelChunk current, int currentVersion, long now) {
+            return this.chunk == current
+                    && this.version == currentVersion
+                    && !this.expired(now)
+                    && !this.future.isCompletedExceptionally()
+                    && !this.future.isCancelled();
+        }
+
+        boolean expired(long now) {
+            return now - this.createdNanos > ChunkSendModule.PACKET_CACHE_TTL_MS * 1_000_000L;
+        }
+    }
+}
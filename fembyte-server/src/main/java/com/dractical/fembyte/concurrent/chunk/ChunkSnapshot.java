@@ -0,0 +1,27 @@
+package com.dractical.fembyte.concurrent.chunk;
+
+import net.minecraft.network.protocol.game.ClientboundLevelChunkPacketData;
+import net.minecraft.network.protocol.game.ClientboundLevelChunkWithLightPacket;
+import net.minecraft.network.protocol.game.ClientboundLightUpdatePacketData;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.LevelChunk;
+
+// Everything a chunk packet reads from the live chunk and light engine, captured on the main thread so the packet
+// can be built on a worker without torn reads. Palettes are copied rather than serialized and the light data
+// constructor already copies the nibbles, which keeps the main thread part cheap.
+record ChunkSnapshot(ChunkPos pos, ClientboundLevelChunkPacketData.Snapshot chunk, ClientboundLightUpdatePacketData light) {
+
+    static ChunkSnapshot capture(ServerLevel level, LevelChunk chunk) {
+        ChunkPos pos = chunk.getPos();
+        return new ChunkSnapshot(
+                pos,
+                ClientboundLevelChunkPacketData.Snapshot.of(chunk),
+                new ClientboundLightUpdatePacketData(pos, level.getLightEngine(), null, null)
+        );
+    }
+
+    ClientboundLevelChunkWithLightPacket build() {
+        return new ClientboundLevelChunkWithLightPacket(this.pos, new ClientboundLevelChunkPacketData(this.chunk), this.light);
+    }
+}
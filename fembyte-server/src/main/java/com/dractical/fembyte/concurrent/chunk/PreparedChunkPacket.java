@@ -0,0 +1,95 @@
+package com.dractical.fembyte.concurrent.chunk;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.ConnectionProtocol;
+import net.minecraft.network.ProtocolInfo;
+import net.minecraft.network.VarInt;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.ClientboundLevelChunkWithLightPacket;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+// A chunk packet together with its encoded form. The packet id and body are encoded once, and the compressed frame
+// is built once per compression threshold in use, so every connection with that threshold writes the same bytes.
+final class PreparedChunkPacket {
+
+    private static final int NO_COMPRESSION = -1;
+
+    private final ClientboundLevelChunkWithLightPacket packet;
+    private final @Nullable byte[] body;
+    private final ConcurrentHashMap<Integer, byte[]> frames = new ConcurrentHashMap<>();
+
+    private PreparedChunkPacket(ClientboundLevelChunkWithLightPacket packet, @Nullable byte[] body) {
+        this.packet = packet;
+        this.body = body;
+    }
+
+    static PreparedChunkPacket of(ClientboundLevelChunkWithLightPacket packet) {
+        return new PreparedChunkPacket(packet, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    static PreparedChunkPacket encode(ClientboundLevelChunkWithLightPacket packet, @Nullable ProtocolInfo<?> protocol, int threshold) {
+        if (protocol == null || protocol.id() != ConnectionProtocol.PLAY) {
+            return of(packet);
+        }
+
+        ByteBuf buffer = Unpooled.buffer();
+        ((ProtocolInfo<Object>) protocol).codec().encode(buffer, (Packet<? super Object>) (Packet<?>) packet);
+        PreparedChunkPacket prepared = new PreparedChunkPacket(packet, Arrays.copyOf(buffer.array(), buffer.writerIndex()));
+        prepared.frame(threshold);
+        return prepared;
+    }
+
+    ClientboundLevelChunkWithLightPacket packet() {
+        return this.packet;
+    }
+
+    boolean encoded() {
+        return this.body != null;
+    }
+
+    boolean hasFrame(int threshold) {
+        return this.frames.containsKey(Math.max(NO_COMPRESSION, threshold));
+    }
+
+    @Nullable byte[] frame(int threshold) {
+        byte[] body = this.body;
+        if (body == null) {
+            return null;
+        }
+        return this.frames.computeIfAbsent(Math.max(NO_COMPRESSION, threshold), key -> compress(body, key));
+    }
+
+    // same framing as CompressionEncoder: uncompressed length, or 0 for bodies below the threshold
+    private static byte[] compress(byte[] body, int threshold) {
+        if (threshold == NO_COMPRESSION) {
+            return body;
+        }
+
+        ByteBuf out = Unpooled.buffer(body.length / 2 + 16);
+        if (body.length < threshold) {
+            VarInt.write(out, 0);
+            out.writeBytes(body);
+        } else {
+            VarInt.write(out, body.length);
+            Deflater deflater = new Deflater();
+            try {
+                deflater.setInput(body);
+                deflater.finish();
+                byte[] chunk = new byte[8192];
+                while (!deflater.finished()) {
+                    int written = deflater.deflate(chunk);
+                    out.writeBytes(chunk, 0, written);
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        return Arrays.copyOf(out.array(), out.writerIndex());
+    }
+}
@@ -5,7 +5,7 @@ import com.dractical.fembyte.config.ConfigModule;
 
 public class ChunkSendModule extends ConfigModule {
 
-    public static boolean ENABLED = false;
+    public static boolean ENABLED = true;
     public static int MAX_IN_FLIGHT_PER_PLAYER = 6;
     public static int MAX_GLOBAL_IN_FLIGHT = 128;
     public static long PREPARATION_TIMEOUT_MS = 0L;
@@ -13,6 +13,17 @@ public class ChunkSendModule extends ConfigModule {
     public static boolean SEND_ON_MAIN_THREAD = true;
     public static boolean FALLBACK_TO_SYNC = true;
     public static Executor EXECUTOR = Executor.CPU;
+    public static boolean PACKET_CACHE = true;
+    public static long PACKET_CACHE_TTL_MS = 10000L;
+    public static int PACKET_CACHE_MAX_ENTRIES = 1024;
+    public static boolean PRE_ENCODE = false;
+    public static boolean SNAPSHOT = true;
+    public static double VIEW_DIRECTION_BIAS = 1.0D;
+    public static boolean ADAPTIVE_IN_FLIGHT = true;
+    public static int ADAPTIVE_MIN_IN_FLIGHT = 1;
+    public static int ADAPTIVE_MAX_IN_FLIGHT = 32;
+    public static long ADAPTIVE_TARGET_LATENCY_MS = 200L;
+    public static long ADAPTIVE_MAX_PENDING_BYTES = 2_097_152L;
 
     public enum Executor {
         CPU,
@@ -27,7 +38,7 @@ public class ChunkSendModule extends ConfigModule {
     public void onLoaded() {
         ENABLED = config.getBoolean(
                 path() + "enabled",
-                false,
+                true,
                 """
                         Enables async chunk packet preparation and dispatch.
                         """
@@ -38,6 +49,60 @@ public class ChunkSendModule extends ConfigModule {
                 6,
                 """
                         Maximum number of chunk packets that may be prepared in parallel for a single player.
+                        With adaptive-in-flight enabled this is only the starting point.
+                        """
+        );
+
+        ADAPTIVE_IN_FLIGHT = config.getBoolean(
+                path() + "adaptive-in-flight.enabled",
+                true,
+                """
+                        Adapts each player's in-flight limit to their connection. The limit grows while chunks reach
+                        the network quickly and halves when the channel backs up, so slow clients do not pile
+                        prepared chunks up in the heap and fast clients get more in parallel.
+                        Preparation pauses while a player's channel is not writable.
+                        """
+        );
+
+        ADAPTIVE_MIN_IN_FLIGHT = config.getInt(
+                path() + "adaptive-in-flight.min",
+                1,
+                """
+                        Lowest in-flight limit per player.
+                        """
+        );
+
+        ADAPTIVE_MAX_IN_FLIGHT = config.getInt(
+                path() + "adaptive-in-flight.max",
+                32,
+                """
+                        Highest in-flight limit per player.
+                        """
+        );
+
+        ADAPTIVE_TARGET_LATENCY_MS = config.getLong(
+                path() + "adaptive-in-flight.target-latency-ms",
+                200L,
+                """
+                        Chunks taking longer than this from the start of preparation until their write completes
+                        shrink the limit.
+                        """
+        );
+
+        ADAPTIVE_MAX_PENDING_BYTES = config.getLong(
+                path() + "adaptive-in-flight.max-pending-bytes",
+                2_097_152L,
+                """
+                        Outbound bytes a player's channel may have buffered before preparation pauses and the limit shrinks.
+                        """
+        );
+
+        VIEW_DIRECTION_BIAS = config.getDouble(
+                path() + "view-direction-bias",
+                1.0D,
+                """
+                        Chunks that do not fit into the in-flight limits wait in a per-player queue, nearest first.
+                        Chunks behind the player are treated as up to 1 + this many times as far away.
                         """
         );
 
@@ -55,6 +120,7 @@ public class ChunkSendModule extends ConfigModule {
                 0L,
                 """
                         Cancels an async preparation if it takes longer than the configured number of milliseconds.
+                        The chunk is then sent synchronously if fallback-to-sync is enabled.
                         Set to 0 to disable it.
                         """
         );
@@ -92,5 +158,51 @@ public class ChunkSendModule extends ConfigModule {
                         while VIRTUAL launches lightweight virtual threads.
                         """
         );
+
+        PACKET_CACHE = config.getBoolean(
+                path() + "packet-cache.enabled",
+                true,
+                """
+                        Shares prepared chunk packets between players that need the same chunk, e.g. at spawn
+                        during a login storm. Entries are dropped as soon as a block or light in the chunk changes.
+                        Chunks obfuscated by anti-xray are never shared.
+                        """
+        );
+
+        PACKET_CACHE_TTL_MS = config.getLong(
+                path() + "packet-cache.ttl-ms",
+                10000L,
+                """
+                        How long an unchanged chunk packet is kept for reuse.
+                        """
+        );
+
+        PACKET_CACHE_MAX_ENTRIES = config.getInt(
+                path() + "packet-cache.max-entries",
+                1024,
+                """
+                        Upper bound for cached chunk packets. A chunk packet is usually 5 to 50 KB.
+                        """
+        );
+
+        SNAPSHOT = config.getBoolean(
+                path() + "snapshot",
+                true,
+                """
+                        Copies the chunk's palettes, heightmaps, block entities and light on the main thread before
+                        building its packet asynchronously, so the packet never sees a chunk halfway through a change.
+                        Only disable this if you accept torn chunk packets in exchange for less main thread work.
+                        """
+        );
+
+        PRE_ENCODE = config.getBoolean(
+                path() + "pre-encode",
+                false,
+                """
+                        Encodes and compresses chunk packets on the async executor, once per compression threshold,
+                        and writes the same bytes to every connection past its packet encoder and compressor.
+                        Plugins that read or rewrite chunk packets in the netty pipeline will not see these packets.
+                        """
+        );
     }
 }
@@ -0,0 +1,83 @@
+package com.dractical.fembyte.config.modules.performance;
+
+import com.dractical.fembyte.config.ConfigCategory;
+import com.dractical.fembyte.config.ConfigModule;
+
+public class DynamicDistanceModule extends ConfigModule {
+
+    public static boolean ENABLED = false;
+    public static double ACTIVATION_TPS = 16.0D;
+    public static double RESTORE_TPS = 19.0D;
+    public static int MIN_SIMULATION_DISTANCE = 4;
+    public static int MIN_VIEW_DISTANCE = 6;
+    public static int STEP_COOLDOWN_TICKS = 200;
+    public static int RESTORE_COOLDOWN_TICKS = 1200;
+
+    private static String path() {
+        return ConfigCategory.PERFORMANCE.getBaseKeyName() + ".dynamic-distance.";
+    }
+
+    @Override
+    public void onLoaded() {
+        ENABLED = config.getBoolean(
+                path() + "enabled",
+                false,
+                """
+                        Lowers a world's simulation distance and then its view distance, one step at a time,
+                        when it keeps lagging after tick throttling has reached its limits.
+                        Requires performance.tick-throttle to be enabled for the world.
+                        """
+        );
+
+        ACTIVATION_TPS = config.getDouble(
+                path() + "activation-tps",
+                16.0D,
+                """
+                        Distances are lowered while TPS stays below this and mob and random tick throttling
+                        are already at their max-interval and min-scale.
+                        """
+        );
+
+        RESTORE_TPS = config.getDouble(
+                path() + "restore-tps",
+                19.0D,
+                """
+                        Distances are raised back one step at a time while the slow TPS average is at or above this.
+                        """
+        );
+
+        MIN_SIMULATION_DISTANCE = config.getInt(
+                path() + "min-simulation-distance",
+                4,
+                """
+                        Simulation distance is never lowered below this (at least 2).
+                        """
+        );
+
+        MIN_VIEW_DISTANCE = config.getInt(
+                path() + "min-view-distance",
+                6,
+                """
+                        View distance is never lowered below this (at least 2). It is only lowered once
+                        simulation distance has reached its minimum.
+                        """
+        );
+
+        STEP_COOLDOWN_TICKS = config.getInt(
+                path() + "step-cooldown-ticks",
+                200,
+                """
+                        Minimum ticks between two reductions, so each step has time to show in the tick time.
+                        """
+        );
+
+        RESTORE_COOLDOWN_TICKS = config.getInt(
+                path() + "restore-cooldown-ticks",
+                1200,
+                """
+                        Minimum ticks between any change and raising a distance again. Every restored step
+                        loads and sends a ring of chunks, so this is kept longer than step-cooldown-ticks.
+                        """
+        );
+    }
+}
@@ -2,6 +2,17 @@ package com.dractical.fembyte.config.modules.performance;
 
 import com.dractical.fembyte.config.ConfigCategory;
 import com.dractical.fembyte.config.ConfigModule;
+import com.dractical.fembyte.perf.PoissonTable;
+import com.dractical.fembyte.perf.RandomTickFilter;
+import com.dractical.fembyte.perf.RandomTickLod;
+import net.minecraft.resources.ResourceLocation;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 public final class RandomTickModule extends ConfigModule {
 
@@ -11,6 +22,29 @@ public final class RandomTickModule extends ConfigModule {
     public static double DENSITY_MAX_LAMBDA = 16.0D;
     public static int DENSITY_MAX_TICKS_PER_SECTION = 64;
     public static double DENSITY_POISSON_SLOW_PATH = 5.0D;
+    public static PoissonSampler DENSITY_POISSON_SAMPLER = PoissonSampler.TABLE;
+    public static int DENSITY_POISSON_TABLE_RESOLUTION = 16;
+    public static double DENSITY_POISSON_TABLE_MAX_LAMBDA = 64.0D;
+    public static long DENSITY_TICK_BUDGET_NANOS = 0L;
+    public static double DENSITY_TICK_BUDGET_MAX_CARRY = 64.0D;
+    public static boolean LOD_ENABLED = false;
+    public static boolean LOD_COMPENSATE = true;
+    public static RandomTickLod.Ring[] LOD_RINGS = new RandomTickLod.Ring[0];
+    public static boolean CATCH_UP = false;
+    public static long CATCH_UP_MIN_MISSED_TICKS = 200L;
+    public static long CATCH_UP_MAX_MISSED_TICKS = 72000L;
+    public static double CATCH_UP_REPLAY_FRACTION = 1.0D;
+    public static int CATCH_UP_MAX_TICKS_PER_SECTION = 16384;
+    public static int CATCH_UP_SPREAD_TICKS = 20;
+    public static long CATCH_UP_FORGET_AFTER_TICKS = 168000L;
+    public static boolean INERT_FILTER = false;
+    public static boolean METRICS = false;
+    private static final Set<ResourceLocation> INERT_EXTRA_BLOCKS = new HashSet<>();
+    public static Dispatch DISPATCH = Dispatch.DIRECT;
+    public static boolean DISPATCH_REUSE_MUTABLE_POS = false;
+    public static boolean PARALLEL_SAMPLING = false;
+    public static int PARALLEL_SAMPLING_MIN_CHUNKS = 64;
+    public static int PARALLEL_SAMPLING_CHUNKS_PER_TASK = 32;
 
     private static String path() {
         return ConfigCategory.PERFORMANCE.getBaseKeyName() + ".random-tick.";
@@ -70,8 +104,279 @@ public final class RandomTickModule extends ConfigModule {
                 """
                         Threshold that decides when the Poisson sampler switches from the Knuth algorithm
                         to a Gaussian approximation. Lower values bias toward the approximation more often.
+                        Only used by the KNUTH sampler, or when lambda is larger than the table covers.
+                        """
+        );
+        if (DENSITY_POISSON_SLOW_PATH > PoissonTable.MAX_LAMBDA) {
+            logger.warn("{}density.poisson-slow-path-threshold is above {}, where exp(-lambda) underflows; clamping.", path(), PoissonTable.MAX_LAMBDA);
+            DENSITY_POISSON_SLOW_PATH = PoissonTable.MAX_LAMBDA;
+        }
+
+        DENSITY_POISSON_SAMPLER = config.getEnum(
+                path() + "density.poisson-sampler",
+                PoissonSampler.TABLE,
+                """
+                        How the POISSON distribution draws tick counts.
+                        - TABLE = precomputed alias tables, one random draw and no exp/sqrt per sample.
+                        - KNUTH = Knuth's algorithm below the slow-path threshold, Gaussian approximation above it.
+                        """
+        );
+
+        DENSITY_POISSON_TABLE_RESOLUTION = config.getInt(
+                path() + "density.poisson-table-resolution",
+                16,
+                """
+                        Number of precomputed tables per unit of lambda for the TABLE sampler.
+                        Lambdas in between are stochastically rounded, so the mean stays exact.
+                        """
+        );
+
+        DENSITY_POISSON_TABLE_MAX_LAMBDA = config.getDouble(
+                path() + "density.poisson-table-max-lambda",
+                64.0D,
+                """
+                        Largest lambda the TABLE sampler covers when max-lambda is disabled.
+                        When max-lambda is set, the tables cover exactly up to that cap. Either way at most 700.
+                        max-lambda is applied before LOD compensation, catch-up and budget carry, so the lambda
+                        actually sampled can be larger than the tables; those samples fall back to the KNUTH path.
+                        """
+        );
+
+        DENSITY_TICK_BUDGET_NANOS = Math.round(config.getDouble(
+                path() + "density.tick-budget-us",
+                0.0D,
+                """
+                        Per-world wall time budget for density random ticking in one game tick, in microseconds.
+                        Sections left over once the budget is used up are skipped this tick and their expected ticks
+                        are carried into the next ones, so growth rates even out instead of being dropped.
+                        The next tick starts at the first deferred chunk, so deferral rotates through all chunks.
+                        Set to <= 0 to disable.
+                        """
+        ) * 1000.0D);
+
+        DENSITY_TICK_BUDGET_MAX_CARRY = config.getDouble(
+                path() + "density.tick-budget-max-carry",
+                64.0D,
+                """
+                        Upper bound for the expected ticks a single section can carry over from budget-deferred ticks.
+                        Set to <= 0 to disable the bound.
+                        """
+        );
+
+        LOD_ENABLED = config.getBoolean(
+                path() + "density.lod.enabled",
+                false,
+                "Scale density random ticking by distance to the nearest player in the same world."
+        );
+
+        LOD_COMPENSATE = config.getBoolean(
+                path() + "density.lod.compensate",
+                true,
+                """
+                        If true, a ring with rate r ticks its chunks every 1/r game ticks with r-times fewer
+                        but proportionally larger samples, keeping expected growth equal to vanilla while
+                        skipping most chunk visits. If false, lambda is scaled down by r every tick,
+                        which genuinely slows growth far away from players.
                         """
         );
+
+        loadLodRings();
+
+        CATCH_UP = config.getBoolean(
+                path() + "catch-up.enabled",
+                false,
+                """
+                        Replay random ticks a chunk missed while it was unloaded or outside random tick range.
+                        The missed ticks are sampled from a Poisson distribution when the chunk starts ticking again,
+                        so farms keep progressing with a smaller simulation distance. Only remembered until restart.
+                        """
+        );
+
+        CATCH_UP_MIN_MISSED_TICKS = config.getLong(
+                path() + "catch-up.min-missed-ticks",
+                200L,
+                "Gaps shorter than this many game ticks are not caught up."
+        );
+
+        CATCH_UP_MAX_MISSED_TICKS = config.getLong(
+                path() + "catch-up.max-missed-ticks",
+                72000L,
+                "Longest gap, in game ticks, that is caught up. Longer gaps are treated as this long."
+        );
+
+        CATCH_UP_REPLAY_FRACTION = Math.min(1.0D, Math.max(0.0D, config.getDouble(
+                path() + "catch-up.replay-fraction",
+                1.0D,
+                "Share of a section's expected missed random ticks that is replayed, from 0 to 1."
+        )));
+
+        CATCH_UP_MAX_TICKS_PER_SECTION = config.getInt(
+                path() + "catch-up.max-ticks-per-section",
+                16384,
+                """
+                        Upper bound on replayed random ticks per section for one catch-up. Ticks above it are lost:
+                        the default covers an hour-long gap for a full layer of crops at the default tick speed,
+                        denser sections or longer gaps are only caught up partially. Set to <= 0 to disable.
+                        """
+        );
+
+        CATCH_UP_SPREAD_TICKS = config.getInt(
+                path() + "catch-up.spread-ticks",
+                20,
+                """
+                        Minimum number of game ticks a catch-up burst is spread over. Larger bursts are spread further,
+                        so a section replays no more than density.max-ticks-per-section ticks per game tick.
+                        """
+        );
+
+        CATCH_UP_FORGET_AFTER_TICKS = config.getLong(
+                path() + "catch-up.forget-after-ticks",
+                168000L,
+                """
+                        Chunks that have not ticked for this many game ticks are forgotten to bound memory use,
+                        and get no catch-up when they return. Set to <= 0 to never forget.
+                        """
+        );
+
+        METRICS = config.getBoolean(
+                path() + "metrics",
+                false,
+                """
+                        Record random tick counters per world and block type, shown by /fembyte status randomtick
+                        and cleared by /fembyte status randomtick reset.
+                        Adds a small cost to every random tick while enabled.
+                        """
+        );
+
+        INERT_FILTER = config.getBoolean(
+                path() + "inert-filter.enabled",
+                false,
+                """
+                        Skip sampled random ticks on block states whose random tick can never do anything.
+                        Only applies to the DENSITY mode. Skipped samples still count toward lambda,
+                        so live blocks keep their exact tick rate.
+                        The built-in rules only cover fully grown hanging mangrove propagules,
+                        so this is mostly useful together with extra-blocks.
+                        """
+        );
+
+        loadInertExtraBlocks();
+
+        DISPATCH = config.getEnum(
+                path() + "dispatch",
+                Dispatch.DIRECT,
+                """
+                        How sampled random ticks are handed to blocks, for both VANILLA and DENSITY modes.
+                        - DIRECT = tick each block as soon as it is sampled (vanilla order).
+                        - GROUPED = sample a whole section first, then tick blocks grouped by block state.
+                          Same tick counts, but ticks within a section run in a different order.
+                        """
+        );
+
+        DISPATCH_REUSE_MUTABLE_POS = config.getBoolean(
+                path() + "dispatch-reuse-mutable-pos",
+                false,
+                """
+                        EXPERIMENTAL: pass one reused mutable position to randomTick instead of allocating
+                        a new one per tick, for both dispatch modes. Unsafe if a block or plugin keeps a
+                        reference to the position (e.g. scheduling a tick with it), so it is off by default
+                        and every random tick still allocates a position. Leave this off unless every
+                        randomly ticking block on the server is known to copy it.
+                        """
+        );
+
+        PARALLEL_SAMPLING = config.getBoolean(
+                path() + "parallel-sampling.enabled",
+                false,
+                """
+                        Sample random tick positions for all ticking chunks of a world in parallel before chunk ticking.
+                        Only the block ticks themselves run on the main thread. Each chunk is sampled with a random
+                        derived from the world seed, game time and chunk position, so results are deterministic.
+                        """
+        );
+
+        PARALLEL_SAMPLING_MIN_CHUNKS = config.getInt(
+                path() + "parallel-sampling.min-chunks",
+                64,
+                "Worlds with fewer ticking chunks than this are sampled serially."
+        );
+
+        PARALLEL_SAMPLING_CHUNKS_PER_TASK = config.getInt(
+                path() + "parallel-sampling.chunks-per-task",
+                32,
+                "How many chunks each parallel sampling task handles."
+        );
+
+        if (DENSITY_POISSON_SAMPLER == PoissonSampler.TABLE) {
+            final double tableMaxLambda = DENSITY_MAX_LAMBDA > 0.0D ? DENSITY_MAX_LAMBDA : DENSITY_POISSON_TABLE_MAX_LAMBDA;
+            if (tableMaxLambda > PoissonTable.MAX_LAMBDA) {
+                logger.warn("Poisson tables are limited to lambda {}, larger lambdas use the KNUTH sampler.", PoissonTable.MAX_LAMBDA);
+            }
+            PoissonTable.rebuild(tableMaxLambda, DENSITY_POISSON_TABLE_RESOLUTION);
+        } else {
+            PoissonTable.rebuild(0.0D, 0);
+        }
+    }
+
+    @Override
+    public void onPostLoaded() {
+        RandomTickFilter.rebuild(ENABLED && INERT_FILTER, INERT_EXTRA_BLOCKS);
+    }
+
+    private void loadInertExtraBlocks() {
+        INERT_EXTRA_BLOCKS.clear();
+
+        final List<String> configuredBlocks = config.getList(
+                path() + "inert-filter.extra-blocks",
+                List.of(),
+                """
+                        Extra blocks (e.g. cactus) whose random ticks should always be skipped.
+                        Unlike the built-in rules this changes gameplay: the listed blocks stop growing or spreading.
+                        """
+        );
+
+        for (final String entry : configuredBlocks) {
+            if (entry == null || entry.isBlank()) {
+                continue;
+            }
+
+            final ResourceLocation id = ResourceLocation.tryParse(entry.trim().toLowerCase(Locale.ROOT));
+            if (id == null) {
+                logger.warn("Invalid block '{}' in {}inert-filter.extra-blocks, skipping.", entry, path());
+                continue;
+            }
+
+            INERT_EXTRA_BLOCKS.add(id);
+        }
+    }
+
+    private void loadLodRings() {
+        final List<String> configuredRings = config.getList(
+                path() + "density.lod.rings",
+                List.of("4:1.0", "8:0.5", "*:0.25"),
+                """
+                        Rings as "max-chunk-distance:rate", using chebyshev chunk distance to the nearest player.
+                        Use "*" as distance for the outermost ring. Chunks beyond every ring use the last one.
+                        """
+        );
+
+        final List<RandomTickLod.Ring> rings = new ArrayList<>();
+        for (final String entry : configuredRings) {
+            if (entry == null || entry.isBlank()) {
+                continue;
+            }
+
+            final String[] parts = entry.trim().split(":");
+            try {
+                final int distance = parts[0].trim().equals("*") ? Integer.MAX_VALUE : Integer.parseInt(parts[0].trim());
+                rings.add(RandomTickLod.Ring.of(distance, Double.parseDouble(parts[1].trim())));
+            } catch (final RuntimeException ex) {
+                logger.warn("Invalid ring '{}' in {}density.lod.rings, skipping.", entry, path());
+            }
+        }
+
+        rings.sort(Comparator.comparingInt(RandomTickLod.Ring::maxDistance));
+        LOD_RINGS = rings.toArray(new RandomTickLod.Ring[0]);
     }
 
     public enum Mode {
@@ -83,4 +388,14 @@ public final class RandomTickModule extends ConfigModule {
         POISSON,
         SMOOTHED_ACCUMULATOR,
     }
+
+    public enum Dispatch {
+        DIRECT,
+        GROUPED,
+    }
+
+    public enum PoissonSampler {
+        TABLE,
+        KNUTH,
+    }
 }
@@ -2,10 +2,28 @@ package com.dractical.fembyte.config.modules.performance;
 
 import com.dractical.fembyte.config.ConfigCategory;
 import com.dractical.fembyte.config.ConfigModule;
+import io.github.thatsmusic99.configurationmaster.api.ConfigSection;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.entity.EntityType;
+import net.minecraft.world.level.block.entity.BlockEntityType;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 public class TickThrottleModule extends ConfigModule {
 
     public static boolean ENABLED = false;
+    public static Mode MODE = Mode.THRESHOLD;
+    public static double BUDGET_TARGET_MSPT = 45.0D;
+    public static double BUDGET_RELEASE_HEADROOM_MSPT = 5.0D;
     public static double RANDOM_ACTIVATION_TPS = 19.8D;
     public static double RANDOM_MIN_TPS = 17.0D;
     public static double RANDOM_MIN_SCALE = 0.25D;
@@ -15,6 +33,39 @@ public class TickThrottleModule extends ConfigModule {
     public static double HOSTILE_ACTIVATION_TPS = 19.0D;
     public static double HOSTILE_MIN_TPS = 15.5D;
     public static int HOSTILE_MAX_INTERVAL = 3;
+    public static double BLOCK_ENTITY_ACTIVATION_TPS = 18.5D;
+    public static double BLOCK_ENTITY_MIN_TPS = 15.0D;
+    public static int BLOCK_ENTITY_MAX_INTERVAL = 2;
+    private static final Map<ResourceLocation, Integer> BLOCK_ENTITY_TYPE_INTERVALS = new HashMap<>();
+    private static Reference2IntOpenHashMap<BlockEntityType<?>> BLOCK_ENTITY_TYPE_MAX_INTERVALS = new Reference2IntOpenHashMap<>();
+    public static double SCHEDULED_ACTIVATION_TPS = 18.0D;
+    public static double SCHEDULED_MIN_TPS = 15.0D;
+    public static int SCHEDULED_SOFT_LIMIT = 8192;
+    public static int SCHEDULED_MIN_LIMIT = 1024;
+    public static long ENTITY_SLICE_BUDGET_NANOS = 0L;
+    public static boolean ENTITY_SLICE_NON_MOBS = true;
+    private static final Set<ResourceLocation> ENTITY_SLICE_EXEMPT_IDS = new HashSet<>();
+    private static Set<EntityType<?>> ENTITY_SLICE_EXEMPT = Set.of();
+    public static boolean VILLAGER_SEPARATE = true;
+    public static double VILLAGER_ACTIVATION_TPS = 19.5D;
+    public static double VILLAGER_MIN_TPS = 16.0D;
+    public static int VILLAGER_MAX_INTERVAL = 5;
+    public static int VILLAGER_IDLE_AFTER_TICKS = 600;
+    public static int VILLAGER_IDLE_INTERVAL = 20;
+    public static int CONTROLLER_ENGAGE_WINDOW = 40;
+    public static int CONTROLLER_RELEASE_WINDOW = 200;
+    public static double CONTROLLER_RELEASE_MARGIN_TPS = 0.5D;
+    public static int CONTROLLER_ENGAGE_COOLDOWN_TICKS = 40;
+    public static int CONTROLLER_RELEASE_COOLDOWN_TICKS = 200;
+    public static double CONTROLLER_MAX_SCALE_STEP = 0.01D;
+    public static double CONTROLLER_MAX_SAMPLE_MSPT = 150.0D;
+    public static boolean DISTANCE_TIERS = true;
+    public static double DISTANCE_NEAR_MIN_SEVERITY = 0.75D;
+    public static int DISTANCE_FAR_MULTIPLIER = 2;
+    public static boolean CATCH_UP = true;
+    public static int CATCH_UP_MAX_TICKS = 200;
+    public static WorldSettings DEFAULTS = WorldSettings.fromGlobals();
+    private static Map<String, WorldSettings> WORLD_SETTINGS = Map.of();
 
     private static String path() {
         return ConfigCategory.PERFORMANCE.getBaseKeyName() + ".tick-throttle.";
@@ -28,6 +79,34 @@ public class TickThrottleModule extends ConfigModule {
                 "Enables a tick throttling system, which skips ticks when TPS drops."
         );
 
+        MODE = config.getEnum(
+                path() + "mode",
+                Mode.THRESHOLD,
+                """
+                        How throttling decides how much to skip.
+                        - THRESHOLD = scales linearly between the activation-tps and min-tps settings below.
+                        - BUDGET = measures the time spent on passive mobs, hostile mobs and random ticks and
+                          picks the mildest throttling predicted to keep the tick under budget.target-mspt.
+                          The max-interval and min-scale settings still apply as limits.
+                        """
+        );
+
+        BUDGET_TARGET_MSPT = config.getDouble(
+                path() + "budget.target-mspt",
+                45.0D,
+                """
+                        Tick time (in milliseconds) the BUDGET mode tries to stay under.
+                        """
+        );
+
+        BUDGET_RELEASE_HEADROOM_MSPT = config.getDouble(
+                path() + "budget.release-headroom-mspt",
+                5.0D,
+                """
+                        Throttling is only released once the predicted tick fits this far below the target.
+                        """
+        );
+
         RANDOM_ACTIVATION_TPS = config.getDouble(
                 path() + "random.activation-tps",
                 19.8D,
@@ -100,5 +179,400 @@ public class TickThrottleModule extends ConfigModule {
                         Maximum interval (in ticks) between hostile mob updates when throttling.
                         """
         );
+
+        VILLAGER_SEPARATE = config.getBoolean(
+                path() + "villager.enabled",
+                true,
+                """
+                        Gives villagers their own category: instead of skipping whole villager ticks with the
+                        passive mobs, only their brain (sensors, POI lookups, gossip, schedules) is throttled.
+                        """
+        );
+
+        VILLAGER_ACTIVATION_TPS = config.getDouble(
+                path() + "villager.activation-tps",
+                19.5D,
+                """
+                        TPS threshold where villager brains begin skipping ticks.
+                        """
+        );
+
+        VILLAGER_MIN_TPS = config.getDouble(
+                path() + "villager.min-tps",
+                16.0D,
+                """
+                        TPS where villager brain throttling reaches the maximum skip interval.
+                        """
+        );
+
+        VILLAGER_MAX_INTERVAL = config.getInt(
+                path() + "villager.max-interval",
+                5,
+                """
+                        Maximum interval (in ticks) between villager brain updates when throttling.
+                        """
+        );
+
+        VILLAGER_IDLE_AFTER_TICKS = config.getInt(
+                path() + "villager.idle-after-ticks",
+                600,
+                """
+                        While villager brains are throttled, villagers that kept their block position and job site
+                        this long (and are not trading or hurt) drop into idle mode. 0 disables idle mode.
+                        """
+        );
+
+        VILLAGER_IDLE_INTERVAL = config.getInt(
+                path() + "villager.idle-interval",
+                20,
+                """
+                        Interval (in ticks) between brain updates of idle villagers.
+                        """
+        );
+
+        BLOCK_ENTITY_ACTIVATION_TPS = config.getDouble(
+                path() + "block-entity.activation-tps",
+                18.5D,
+                """
+                        TPS threshold where ticking block entities (hoppers, furnaces, ...) begin skipping ticks.
+                        """
+        );
+
+        BLOCK_ENTITY_MIN_TPS = config.getDouble(
+                path() + "block-entity.min-tps",
+                15.0D,
+                """
+                        TPS where block entity throttling reaches the maximum skip interval.
+                        """
+        );
+
+        BLOCK_ENTITY_MAX_INTERVAL = config.getInt(
+                path() + "block-entity.max-interval",
+                2,
+                """
+                        Maximum interval (in ticks) between block entity updates when throttling.
+                        """
+        );
+
+        this.loadBlockEntityTypeIntervals();
+
+        SCHEDULED_ACTIVATION_TPS = config.getDouble(
+                path() + "scheduled.activation-tps",
+                18.0D,
+                """
+                        TPS threshold where the number of scheduled block and fluid ticks run per tick gets capped.
+                        Ticks over the cap stay queued and run on the following ticks.
+                        """
+        );
+
+        SCHEDULED_MIN_TPS = config.getDouble(
+                path() + "scheduled.min-tps",
+                15.0D,
+                """
+                        TPS where the scheduled tick cap reaches scheduled.min-limit.
+                        """
+        );
+
+        SCHEDULED_SOFT_LIMIT = config.getInt(
+                path() + "scheduled.soft-limit",
+                8192,
+                """
+                        Scheduled block and fluid ticks per tick as soon as the cap is active.
+                        """
+        );
+
+        SCHEDULED_MIN_LIMIT = config.getInt(
+                path() + "scheduled.min-limit",
+                1024,
+                """
+                        Scheduled block and fluid ticks per tick under the heaviest throttling.
+                        """
+        );
+
+        ENTITY_SLICE_BUDGET_NANOS = (long) (config.getDouble(
+                path() + "entity-slice.budget-ms",
+                0.0D,
+                """
+                        Hard per-world budget (in milliseconds) for full entity ticks, 0 to disable.
+                        Entities are walked round-robin: the ones that did not fit this tick get an inactive tick
+                        and are first in line on the next one, so with N entities and room for W per tick every
+                        entity still gets a full tick at least once every N / W ticks.
+                        Players and entities carrying passengers are never deferred.
+                        """
+        ) * 1_000_000.0D);
+
+        ENTITY_SLICE_NON_MOBS = config.getBoolean(
+                path() + "entity-slice.include-non-mobs",
+                true,
+                "Also slice entities that are not mobs, like items, experience orbs, projectiles and minecarts."
+        );
+
+        this.loadEntitySliceExempt();
+
+        CONTROLLER_ENGAGE_WINDOW = config.getInt(
+                path() + "controller.engage-window-ticks",
+                40,
+                """
+                        Window (in ticks) of the fast moving average of tick time that decides when throttling engages.
+                        """
+        );
+
+        CONTROLLER_RELEASE_WINDOW = config.getInt(
+                path() + "controller.release-window-ticks",
+                200,
+                """
+                        Window (in ticks) of the slow moving average of tick time that decides when throttling releases.
+                        """
+        );
+
+        CONTROLLER_RELEASE_MARGIN_TPS = config.getDouble(
+                path() + "controller.release-margin-tps",
+                0.5D,
+                """
+                        Hysteresis: the slow average has to be this much TPS above a threshold before
+                        throttling that was engaged below it is released again.
+                        """
+        );
+
+        CONTROLLER_ENGAGE_COOLDOWN_TICKS = config.getInt(
+                path() + "controller.engage-cooldown-ticks",
+                40,
+                """
+                        Minimum ticks between two steps up of a mob throttle interval.
+                        """
+        );
+
+        CONTROLLER_RELEASE_COOLDOWN_TICKS = config.getInt(
+                path() + "controller.release-cooldown-ticks",
+                200,
+                """
+                        Minimum ticks between two steps down of a mob throttle interval.
+                        """
+        );
+
+        CONTROLLER_MAX_SCALE_STEP = config.getDouble(
+                path() + "controller.max-random-scale-step",
+                0.01D,
+                """
+                        Largest change of the random tick scale per tick.
+                        """
+        );
+
+        CONTROLLER_MAX_SAMPLE_MSPT = config.getDouble(
+                path() + "controller.max-sample-mspt",
+                150.0D,
+                """
+                        Single tick times are clamped to this before averaging, so one GC pause
+                        or chunk generation spike cannot engage throttling on its own.
+                        """
+        );
+
+        DISTANCE_TIERS = config.getBoolean(
+                path() + "distance-tiers.enabled",
+                true,
+                """
+                        Throttles mobs by distance to the nearest player, so throttling under load lands on
+                        farms and empty pastures before the mobs players are interacting with.
+                        """
+        );
+
+        DISTANCE_NEAR_MIN_SEVERITY = config.getDouble(
+                path() + "distance-tiers.near-min-severity",
+                0.75D,
+                """
+                        Mobs within 3 chunks of a player stay at full rate until throttling of their
+                        category has reached this fraction of its max-interval (0 to 1).
+                        """
+        );
+
+        DISTANCE_FAR_MULTIPLIER = config.getInt(
+                path() + "distance-tiers.far-multiplier",
+                2,
+                """
+                        Mobs more than 9 chunks from every player get their throttle interval multiplied by this.
+                        """
+        );
+
+        CATCH_UP = config.getBoolean(
+                path() + "catch-up.enabled",
+                true,
+                """
+                        Advances love timers, egg laying and brain memory cooldowns by the ticks a mob skipped
+                        while throttled, on its next full tick. Age already advances on skipped ticks.
+                        """
+        );
+
+        CATCH_UP_MAX_TICKS = config.getInt(
+                path() + "catch-up.max-ticks",
+                200,
+                """
+                        Most skipped ticks made up for at once.
+                        """
+        );
+
+        DEFAULTS = WorldSettings.fromGlobals();
+        final Map<String, WorldSettings> worldSettings = new HashMap<>();
+        final ConfigSection worlds = config.getConfigSection(
+                path() + "worlds",
+                Map.of(),
+                """
+                        Per-world overrides, keyed by world name. Every world is throttled on its own, based on
+                        its own tick time plus the part of the server tick not spent in any world.
+                        Supported keys: enabled, mode, budget.target-mspt, and the activation-tps, min-tps,
+                        min-scale and max-interval keys of random, passive and hostile.
+                        The block-entity, scheduled, villager, entity-slice, distance-tiers, controller and catch-up
+                        settings are global only; they apply to every world, each with its own state.
+                        Example:
+                          world_nether:
+                            hostile:
+                              max-interval: 3
+                        """
+        );
+        if (worlds != null) {
+            for (final String world : worlds.getKeys(false)) {
+                worldSettings.put(world, this.loadOverride(path() + "worlds." + world + "."));
+            }
+        }
+        WORLD_SETTINGS = Map.copyOf(worldSettings);
+    }
+
+    @Override
+    public void onPostLoaded() {
+        final Reference2IntOpenHashMap<BlockEntityType<?>> intervals = new Reference2IntOpenHashMap<>();
+        intervals.defaultReturnValue(-1);
+        BLOCK_ENTITY_TYPE_INTERVALS.forEach((id, interval) -> {
+            final BlockEntityType<?> type = BuiltInRegistries.BLOCK_ENTITY_TYPE.getValue(id);
+            if (type == null) {
+                logger.warn("Unknown block entity type '{}' in {}block-entity.type-max-intervals, skipping.", id, path());
+                return;
+            }
+            intervals.put(type, Math.max(1, interval));
+        });
+        BLOCK_ENTITY_TYPE_MAX_INTERVALS = intervals;
+
+        final Set<EntityType<?>> exempt = new ReferenceOpenHashSet<>();
+        for (final ResourceLocation id : ENTITY_SLICE_EXEMPT_IDS) {
+            // the entity registry falls back to pig for unknown ids, getOptional does not
+            BuiltInRegistries.ENTITY_TYPE.getOptional(id).ifPresentOrElse(
+                    exempt::add,
+                    () -> logger.warn("Unknown entity type '{}' in {}entity-slice.exempt-types, skipping.", id, path())
+            );
+        }
+        ENTITY_SLICE_EXEMPT = exempt;
+    }
+
+    private void loadEntitySliceExempt() {
+        ENTITY_SLICE_EXEMPT_IDS.clear();
+
+        final List<String> configured = config.getList(
+                path() + "entity-slice.exempt-types",
+                List.of("minecraft:ender_pearl", "minecraft:fishing_bobber", "minecraft:firework_rocket", "minecraft:tnt", "minecraft:ender_dragon", "minecraft:wither"),
+                "Entity types that always get a full tick, even when the slice budget is used up."
+        );
+
+        for (final String entry : configured) {
+            if (entry == null || entry.isBlank()) {
+                continue;
+            }
+
+            final ResourceLocation id = ResourceLocation.tryParse(entry.trim().toLowerCase(Locale.ROOT));
+            if (id == null) {
+                logger.warn("Invalid entity type '{}' in {}entity-slice.exempt-types, skipping.", entry, path());
+                continue;
+            }
+
+            ENTITY_SLICE_EXEMPT_IDS.add(id);
+        }
+    }
+
+    public static boolean isSliceExempt(final EntityType<?> type) {
+        return ENTITY_SLICE_EXEMPT.contains(type);
+    }
+
+    private void loadBlockEntityTypeIntervals() {
+        BLOCK_ENTITY_TYPE_INTERVALS.clear();
+
+        final List<String> configured = config.getList(
+                path() + "block-entity.type-max-intervals",
+                List.of("minecraft:piston:1"),
+                """
+                        Per-type max-interval as "type:max-interval", e.g. "minecraft:hopper:4".
+                        Use 1 to never throttle a type; moving pistons are exempt by default so contraptions keep working.
+                        """
+        );
+
+        for (final String entry : configured) {
+            if (entry == null || entry.isBlank()) {
+                continue;
+            }
+
+            final String trimmed = entry.trim().toLowerCase(Locale.ROOT);
+            final int split = trimmed.lastIndexOf(':');
+            final ResourceLocation id = split <= 0 ? null : ResourceLocation.tryParse(trimmed.substring(0, split));
+            if (id == null) {
+                logger.warn("Invalid entry '{}' in {}block-entity.type-max-intervals, skipping.", entry, path());
+                continue;
+            }
+
+            try {
+                BLOCK_ENTITY_TYPE_INTERVALS.put(id, Integer.parseInt(trimmed.substring(split + 1)));
+            } catch (final NumberFormatException ex) {
+                logger.warn("Invalid entry '{}' in {}block-entity.type-max-intervals, skipping.", entry, path());
+            }
+        }
+    }
+
+    public static int blockEntityMaxInterval(final @Nullable BlockEntityType<?> type) {
+        if (type == null) {
+            return BLOCK_ENTITY_MAX_INTERVAL;
+        }
+        final int interval = BLOCK_ENTITY_TYPE_MAX_INTERVALS.getInt(type);
+        return interval < 0 ? BLOCK_ENTITY_MAX_INTERVAL : interval;
+    }
+
+    private WorldSettings loadOverride(final String base) {
+        final WorldSettings defaults = DEFAULTS;
+        return new WorldSettings(
+                orDefault(config.getBoolean(base + "enabled"), defaults.enabled()),
+                orDefault(config.getEnum(base + "mode", Mode.class), defaults.mode()),
+                orDefault(config.getDouble(base + "budget.target-mspt"), defaults.budgetTargetMspt()),
+                orDefault(config.getDouble(base + "random.activation-tps"), defaults.randomActivationTps()),
+                orDefault(config.getDouble(base + "random.min-tps"), defaults.randomMinTps()),
+                orDefault(config.getDouble(base + "random.min-scale"), defaults.randomMinScale()),
+                orDefault(config.getDouble(base + "passive.activation-tps"), defaults.passiveActivationTps()),
+                orDefault(config.getDouble(base + "passive.min-tps"), defaults.passiveMinTps()),
+                orDefault(config.getInt(base + "passive.max-interval"), defaults.passiveMaxInterval()),
+                orDefault(config.getDouble(base + "hostile.activation-tps"), defaults.hostileActivationTps()),
+                orDefault(config.getDouble(base + "hostile.min-tps"), defaults.hostileMinTps()),
+                orDefault(config.getInt(base + "hostile.max-interval"), defaults.hostileMaxInterval())
+        );
+    }
+
+    private static <T> T orDefault(final T value, final T def) {
+        return value == null ? def : value;
+    }
+
+    public static WorldSettings settingsFor(final String world) {
+        return WORLD_SETTINGS.getOrDefault(world, DEFAULTS);
+    }
+
+    public record WorldSettings(boolean enabled, Mode mode, double budgetTargetMspt,
+                                double randomActivationTps, double randomMinTps, double randomMinScale,
+                                double passiveActivationTps, double passiveMinTps, int passiveMaxInterval,
+                                double hostileActivationTps, double hostileMinTps, int hostileMaxInterval) {
+
+        private static WorldSettings fromGlobals() {
+            return new WorldSettings(
+                    ENABLED, MODE, BUDGET_TARGET_MSPT,
+                    RANDOM_ACTIVATION_TPS, RANDOM_MIN_TPS, RANDOM_MIN_SCALE,
+                    PASSIVE_ACTIVATION_TPS, PASSIVE_MIN_TPS, PASSIVE_MAX_INTERVAL,
+                    HOSTILE_ACTIVATION_TPS, HOSTILE_MIN_TPS, HOSTILE_MAX_INTERVAL
+            );
+        }
+    }
+
+    public enum Mode {
+        THRESHOLD,
+        BUDGET
     }
 }
@@ -11,57 +11,241 @@ import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.chunk.LevelChunk;
 import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.PalettedContainer;
 import net.minecraft.world.level.material.FluidState;
 
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
 public final class DensityTickSystem {
 
     private static final double SECTION_INVERSE_VOLUME = 1.0D / (16.0D * 16.0D * 16.0D);
+    private static final int MAX_GROUPS = 32;
 
-    private final ServerLevel level;
     private final SimpleThreadUnsafeRandom random;
-    private final boolean doubleTickFluids;
+    private final RandomTickDispatcher dispatcher;
+    private final @Nullable ParallelTickSampler parallelSampler;
+    private final @Nullable RandomTickMetrics metrics;
+    // collecting systems only record positions, so the mutable position is always safe to reuse
+    private final boolean collecting;
+
+    // per-world random tick time budget, reset every game tick
+    private long budgetGameTime = Long.MIN_VALUE;
+    private long budgetSpentNanos;
+    private long budgetDeadline = Long.MAX_VALUE;
+    private boolean budgetExhausted;
+    // the budget is spent in the chunk list's order, so once it runs short the next tick starts at the first
+    // deferred chunk and holds back the chunks served last time; otherwise the same tail would starve every tick
+    private int budgetChunk;
+    private int budgetServed;
+    private int budgetFirstDeferred = -1;
+    private int budgetStart;
+    private int budgetWrapEnd;
+
+    private final RandomTickLod lod = new RandomTickLod();
+    private final RandomTickCatchUp catchUp = new RandomTickCatchUp();
+
+    // scratch buffers for GROUPED dispatch, reused across sections
+    private final BlockPos.MutableBlockPos mutablePos = new BlockPos.MutableBlockPos();
+    private final BlockState[] groupStates = new BlockState[MAX_GROUPS];
+    private final int[] groupOffsets = new int[MAX_GROUPS];
+    private int[] sampledLocations = new int[64];
+    private byte[] sampledGroups = new byte[64];
+    private int[] groupedLocations = new int[64];
 
     public DensityTickSystem(final ServerLevel level, final SimpleThreadUnsafeRandom random) {
-        this.level = level;
         this.random = random;
-        this.doubleTickFluids = !ca.spottedleaf.moonrise.common.PlatformHooks.get().configFixMC224294();
+        this.metrics = RandomTickMetrics.forWorld(level.getWorld().getName());
+        this.dispatcher = createLevelDispatcher(level, random, this.metrics);
+        this.parallelSampler = new ParallelTickSampler();
+        this.collecting = false;
+    }
+
+    // detached system without a level, used by the benchmarks to drive synthetic sections
+    public DensityTickSystem(final RandomTickDispatcher dispatcher, final SimpleThreadUnsafeRandom random) {
+        this(dispatcher, random, null, false);
+    }
+
+    private DensityTickSystem(final RandomTickDispatcher dispatcher, final SimpleThreadUnsafeRandom random, final @Nullable RandomTickMetrics metrics, final boolean collecting) {
+        this.random = random;
+        this.dispatcher = dispatcher;
+        this.parallelSampler = null;
+        this.metrics = metrics;
+        this.collecting = collecting;
+    }
+
+    static DensityTickSystem collecting(final RandomTickDispatcher collector, final SimpleThreadUnsafeRandom random, final @Nullable RandomTickMetrics metrics) {
+        return new DensityTickSystem(collector, random, metrics, true);
+    }
+
+    private static RandomTickDispatcher createLevelDispatcher(final ServerLevel level, final SimpleThreadUnsafeRandom random, final RandomTickMetrics metrics) {
+        final boolean doubleTickFluids = !ca.spottedleaf.moonrise.common.PlatformHooks.get().configFixMC224294();
+        return (state, pos) -> {
+            if (RandomTickMetrics.enabled()) {
+                metrics.recordApplied(state.getBlock());
+            }
+            state.randomTick(level, pos, random);
+            if (doubleTickFluids) {
+                final FluidState fluidState = state.getFluidState();
+                if (fluidState.isRandomlyTicking()) {
+                    fluidState.randomTick(level, pos, random);
+                }
+            }
+        };
+    }
+
+    public void prepareParallel(final ServerLevel level, final LevelChunk[] chunks, final int size, final int tickSpeed) {
+        if (this.parallelSampler != null) {
+            this.parallelSampler.prepare(level, chunks, size, tickSpeed, this.metrics);
+        }
+    }
+
+    // the throttle scaled this chunk's random ticks down to zero; it still counts as ticked so catch-up
+    // does not replay ticks the throttle meant to suppress
+    public void skipThrottled(final LevelChunk chunk) {
+        if (RandomTickModule.ENABLED && RandomTickModule.CATCH_UP) {
+            this.catchUp.markTicked(chunk.getPos().toLong(), chunk.getLevel().getGameTime());
+        }
     }
 
     public void tick(final LevelChunk chunk, final int tickSpeed) {
+        if (this.metrics == null || this.collecting || !RandomTickMetrics.enabled()) {
+            this.tickBudgeted(chunk, tickSpeed);
+            return;
+        }
+
+        final long start = System.nanoTime();
+        try {
+            this.tickBudgeted(chunk, tickSpeed);
+        } finally {
+            this.metrics.recordChunk(System.nanoTime() - start);
+        }
+    }
+
+    private void tickBudgeted(final LevelChunk chunk, final int tickSpeed) {
+        final long budget = RandomTickModule.ENABLED && RandomTickModule.MODE == RandomTickModule.Mode.DENSITY && !this.collecting
+                ? RandomTickModule.DENSITY_TICK_BUDGET_NANOS : 0L;
+        if (budget <= 0L) {
+            this.tickUnbudgeted(chunk, tickSpeed);
+            return;
+        }
+
+        final long gameTime = chunk.getLevel().getGameTime();
+        if (gameTime != this.budgetGameTime) {
+            this.budgetGameTime = gameTime;
+            this.budgetSpentNanos = 0L;
+            this.budgetExhausted = false;
+            this.rotateBudget();
+        }
+
+        final int ordinal = this.budgetChunk++;
+        final boolean heldBack = this.budgetStart > 0 && ordinal >= this.budgetWrapEnd && ordinal < this.budgetStart;
+        final boolean exhausted = this.budgetExhausted;
+        if (heldBack) {
+            this.budgetExhausted = true;
+        }
+
+        final long start = System.nanoTime();
+        this.budgetDeadline = this.budgetExhausted ? start : start + (budget - this.budgetSpentNanos);
+        try {
+            this.tickUnbudgeted(chunk, tickSpeed);
+        } finally {
+            this.budgetSpentNanos += System.nanoTime() - start;
+            this.budgetDeadline = Long.MAX_VALUE;
+            if (heldBack) {
+                this.budgetExhausted = exhausted;
+            } else if (!this.budgetExhausted) {
+                ++this.budgetServed;
+            } else if (!exhausted) {
+                this.budgetFirstDeferred = ordinal;
+            }
+        }
+    }
+
+    // the next window covers as many chunks as were served this tick, starting where the budget ran out;
+    // the part past the end of the list wraps around to its start
+    private void rotateBudget() {
+        if (this.budgetFirstDeferred >= 0 && this.budgetChunk > 0) {
+            this.budgetStart = this.budgetFirstDeferred;
+            this.budgetWrapEnd = Math.max(0, this.budgetStart + this.budgetServed - this.budgetChunk);
+        } else {
+            this.budgetStart = 0;
+            this.budgetWrapEnd = 0;
+        }
+        this.budgetChunk = 0;
+        this.budgetServed = 0;
+        this.budgetFirstDeferred = -1;
+    }
+
+    private void tickUnbudgeted(final LevelChunk chunk, final int tickSpeed) {
+        if (RandomTickModule.ENABLED && RandomTickModule.CATCH_UP && !this.collecting) {
+            this.catchUp.tick(this, chunk, tickSpeed, chunk.getLevel().getGameTime(), this.budgetExhausted);
+        }
+
+        // once the budget is gone, prepared samples are dropped and re-sampled serially so their lambda is carried over
+        if (this.parallelSampler != null) {
+            if (!this.budgetExhausted && RandomTickModule.ENABLED && RandomTickModule.PARALLEL_SAMPLING
+                    && this.parallelSampler.tryDispatch(chunk, tickSpeed, this.dispatcher)) {
+                return;
+            }
+            this.parallelSampler.discard(chunk);
+        }
+
+        final ChunkPos chunkPos = chunk.getPos();
+        double lambdaScale = 1.0D;
+        if (RandomTickModule.LOD_ENABLED && RandomTickModule.ENABLED && RandomTickModule.MODE == RandomTickModule.Mode.DENSITY) {
+            lambdaScale = this.lod.lambdaScale((ServerLevel) chunk.getLevel(), chunkPos, chunk.getLevel().getGameTime());
+            if (lambdaScale <= 0.0D) {
+                return;
+            }
+        }
+
+        this.tickSections(chunk.getSections(), WorldUtil.getMinSection(chunk.getLevel()), chunkPos.x, chunkPos.z, tickSpeed, lambdaScale);
+    }
+
+    public void tickSections(final LevelChunkSection[] sections, final int minSection, final int chunkX, final int chunkZ, final int tickSpeed) {
+        this.tickSections(sections, minSection, chunkX, chunkZ, tickSpeed, 1.0D);
+    }
+
+    public void tickSections(final LevelChunkSection[] sections, final int minSection, final int chunkX, final int chunkZ, final int tickSpeed, final double lambdaScale) {
         if (!RandomTickModule.ENABLED || RandomTickModule.MODE == RandomTickModule.Mode.VANILLA) {
-            this.tickVanilla(chunk, tickSpeed);
+            this.tickVanilla(sections, minSection, chunkX, chunkZ, tickSpeed);
             return;
         }
 
-        this.tickDensity(chunk, tickSpeed);
+        this.tickDensity(sections, minSection, chunkX, chunkZ, tickSpeed, lambdaScale);
     }
 
-    private void tickDensity(final LevelChunk chunk, final int tickSpeed) {
-        final LevelChunkSection[] sections = chunk.getSections();
+    // the path taken once the time budget is used up, for detached systems that have no level to budget against
+    public void deferSections(final LevelChunkSection[] sections, final int tickSpeed, final double lambdaScale) {
+        final boolean exhausted = this.budgetExhausted;
+        this.budgetExhausted = true;
+        try {
+            this.tickDensity(sections, 0, 0, 0, tickSpeed, lambdaScale);
+        } finally {
+            this.budgetExhausted = exhausted;
+        }
+    }
+
+    private void tickDensity(final LevelChunkSection[] sections, final int minSection, final int chunkX, final int chunkZ, final int tickSpeed, final double lambdaScale) {
         if (sections.length == 0) {
             return;
         }
 
-        final ChunkPos chunkPos = chunk.getPos();
-        final int minSection = WorldUtil.getMinSection(this.level);
-        final int offsetX = chunkPos.x << 4;
-        final int offsetZ = chunkPos.z << 4;
+        final int offsetX = chunkX << 4;
+        final int offsetZ = chunkZ << 4;
 
         for (int sectionIndex = 0; sectionIndex < sections.length; sectionIndex++) {
             final LevelChunkSection section = sections[sectionIndex];
             if (!section.isRandomlyTickingBlocks()) {
-                if (RandomTickModule.DENSITY_DISTRIBUTION == RandomTickModule.DensityDistribution.SMOOTHED_ACCUMULATOR) {
-                    section.fembyte$setDensityAccumulator(0.0F);
-                }
+                clearAccumulator(section);
                 continue;
             }
 
             final ShortList tickList = ((BlockCountingChunkSection) section).moonrise$getTickingBlockList();
             final int tickingBlocks = tickList.size();
             if (tickingBlocks <= 0) {
-                if (RandomTickModule.DENSITY_DISTRIBUTION == RandomTickModule.DensityDistribution.SMOOTHED_ACCUMULATOR) {
-                    section.fembyte$setDensityAccumulator(0.0F);
-                }
+                clearAccumulator(section);
                 continue;
             }
 
@@ -69,8 +253,23 @@ public final class DensityTickSystem {
             if (RandomTickModule.DENSITY_MAX_LAMBDA > 0.0D) {
                 lambda = Math.min(lambda, RandomTickModule.DENSITY_MAX_LAMBDA);
             }
+            lambda *= lambdaScale;
+
+            if (this.budgetExhausted || (this.budgetDeadline != Long.MAX_VALUE && System.nanoTime() >= this.budgetDeadline)) {
+                this.budgetExhausted = true;
+                final double deferred = deferLambda(section, lambda);
+                // SMOOTHED_ACCUMULATOR folds the carry into its rounding remainder, so it is expected once deferred
+                if (this.metrics != null && RandomTickMetrics.enabled() && RandomTickModule.DENSITY_DISTRIBUTION == RandomTickModule.DensityDistribution.SMOOTHED_ACCUMULATOR) {
+                    this.metrics.recordExpected(RandomTickModule.DensityDistribution.SMOOTHED_ACCUMULATOR, deferred, 0);
+                }
+                continue;
+            }
 
-            int ticks = this.sampleTickCount(section, lambda);
+            final double carry = RandomTickModule.DENSITY_DISTRIBUTION == RandomTickModule.DensityDistribution.POISSON ? takeCarry(section) : 0.0D;
+            int ticks = this.sampleTickCount(section, lambda, carry);
+            if (this.metrics != null && RandomTickMetrics.enabled()) {
+                this.metrics.recordExpected(RandomTickModule.DENSITY_DISTRIBUTION, lambda + carry, ticks);
+            }
             if (RandomTickModule.DENSITY_MAX_TICKS_PER_SECTION > 0) {
                 ticks = Math.min(ticks, RandomTickModule.DENSITY_MAX_TICKS_PER_SECTION);
             }
@@ -79,27 +278,64 @@ public final class DensityTickSystem {
                 continue;
             }
 
+            if (this.metrics != null && RandomTickMetrics.enabled()) {
+                this.metrics.recordSampled(ticks);
+            }
             this.dispatchRandomTicks(section, tickList, ticks, offsetX, (sectionIndex + minSection) << 4, offsetZ);
         }
     }
 
-    private int sampleTickCount(final LevelChunkSection section, final double lambda) {
+    private int sampleTickCount(final LevelChunkSection section, final double lambda, final double carry) {
         if (lambda <= 0.0D) {
             section.fembyte$setDensityAccumulator(0.0F);
             return 0;
         }
 
         return switch (RandomTickModule.DENSITY_DISTRIBUTION) {
-            case POISSON -> this.samplePoisson(lambda);
+            case POISSON -> this.samplePoisson(lambda + carry);
             case SMOOTHED_ACCUMULATOR -> this.sampleWithAccumulator(section, lambda);
         };
     }
 
-    private int samplePoisson(double lambda) {
+    // the accumulator doubles as the carry for lambda deferred by the time budget;
+    // SMOOTHED_ACCUMULATOR consumes it naturally, POISSON adds it to the next sample
+    // returns how much lambda was actually carried over after the cap
+    private static double deferLambda(final LevelChunkSection section, final double lambda) {
+        final float previous = section.fembyte$getDensityAccumulator();
+        double carry = previous + lambda;
+        if (RandomTickModule.DENSITY_TICK_BUDGET_MAX_CARRY > 0.0D) {
+            carry = Math.min(carry, RandomTickModule.DENSITY_TICK_BUDGET_MAX_CARRY);
+        }
+        section.fembyte$setDensityAccumulator((float) carry);
+        return Math.max(0.0D, carry - previous);
+    }
+
+    private static double takeCarry(final LevelChunkSection section) {
+        final float carry = section.fembyte$getDensityAccumulator();
+        if (carry != 0.0F) {
+            section.fembyte$setDensityAccumulator(0.0F);
+        }
+        return Math.max(0.0F, carry);
+    }
+
+    private static void clearAccumulator(final LevelChunkSection section) {
+        if (section.fembyte$getDensityAccumulator() != 0.0F) {
+            section.fembyte$setDensityAccumulator(0.0F);
+        }
+    }
+
+    int samplePoisson(double lambda) {
         if (lambda <= 0.0D) {
             return 0;
         }
 
+        if (RandomTickModule.DENSITY_POISSON_SAMPLER == RandomTickModule.PoissonSampler.TABLE) {
+            final PoissonTable table = PoissonTable.current();
+            if (table != null && lambda <= table.maxLambda()) {
+                return table.sample(lambda, this.random.nextLong());
+            }
+        }
+
         if (lambda < RandomTickModule.DENSITY_POISSON_SLOW_PATH) {
             final double threshold = Math.exp(-lambda);
             int k = 0;
@@ -135,33 +371,48 @@ public final class DensityTickSystem {
         return Math.max(0, wholeTicks);
     }
 
-    private void dispatchRandomTicks(final LevelChunkSection section, final ShortList tickList, final int ticks, final int offsetX, final int offsetY, final int offsetZ) {
+    void dispatchRandomTicks(final LevelChunkSection section, final ShortList tickList, final int ticks, final int offsetX, final int offsetY, final int offsetZ) {
         final var states = section.states;
+        final boolean filter = RandomTickFilter.isActive();
+        if (RandomTickModule.DISPATCH == RandomTickModule.Dispatch.GROUPED) {
+            this.ensureBatchCapacity(ticks);
+            int sampled = 0;
+            int groupCount = 0;
+            for (int iteration = 0; iteration < ticks; iteration++) {
+                final int location = (int) tickList.getRaw(this.random.nextInt(tickList.size())) & 0xFFFF;
+                final BlockState state = states.get(location);
+                if (filter && RandomTickFilter.isInert(state)) {
+                    continue;
+                }
+
+                groupCount = this.addToBatch(sampled++, location, state, groupCount);
+            }
+
+            this.dispatchBatch(states, sampled, groupCount, offsetX, offsetY, offsetZ);
+            return;
+        }
+
         for (int iteration = 0; iteration < ticks; iteration++) {
             final int location = (int) tickList.getRaw(this.random.nextInt(tickList.size())) & 0xFFFF;
             final BlockState state = states.get(location);
-            final BlockPos pos = new BlockPos(
+            // thinning: skipping inert samples leaves exactly the live share of lambda
+            if (filter && RandomTickFilter.isInert(state)) {
+                continue;
+            }
+
+            final BlockPos pos = this.position(
                     (location & 15) | offsetX,
                     ((location >>> 8) & 15) | offsetY,
                     ((location >>> 4) & 15) | offsetZ
             );
 
-            state.randomTick(this.level, pos, this.random);
-            if (this.doubleTickFluids) {
-                final FluidState fluidState = state.getFluidState();
-                if (fluidState.isRandomlyTicking()) {
-                    fluidState.randomTick(this.level, pos, this.random);
-                }
-            }
+            this.dispatcher.dispatch(state, pos);
         }
     }
 
-    private void tickVanilla(final LevelChunk chunk, final int tickSpeed) {
-        final LevelChunkSection[] sections = chunk.getSections();
-        final int minSection = WorldUtil.getMinSection(this.level);
-        final ChunkPos cpos = chunk.getPos();
-        final int offsetX = cpos.x << 4;
-        final int offsetZ = cpos.z << 4;
+    private void tickVanilla(final LevelChunkSection[] sections, final int minSection, final int chunkX, final int chunkZ, final int tickSpeed) {
+        final int offsetX = chunkX << 4;
+        final int offsetZ = chunkZ << 4;
 
         for (int sectionIndex = 0, sectionsLen = sections.length; sectionIndex < sectionsLen; sectionIndex++) {
             final int offsetY = (sectionIndex + minSection) << 4;
@@ -173,6 +424,28 @@ public final class DensityTickSystem {
 
             final ShortList tickList = ((BlockCountingChunkSection) section).moonrise$getTickingBlockList();
 
+            if (RandomTickModule.DISPATCH == RandomTickModule.Dispatch.GROUPED) {
+                this.ensureBatchCapacity(tickSpeed);
+                int hits = 0;
+                int sampled = 0;
+                int groupCount = 0;
+                for (int i = 0; i < tickSpeed; ++i) {
+                    final int index = this.random.nextInt() & ((16 * 16 * 16) - 1);
+                    if (index >= tickList.size()) {
+                        continue;
+                    }
+                    ++hits;
+
+                    final int location = (int) tickList.getRaw(index) & 0xFFFF;
+                    groupCount = this.addToBatch(sampled++, location, states.get(location), groupCount);
+                }
+
+                this.recordVanillaSampled(hits);
+                this.dispatchBatch(states, sampled, groupCount, offsetX, offsetY, offsetZ);
+                continue;
+            }
+
+            int hits = 0;
             for (int i = 0; i < tickSpeed; ++i) {
                 final int tickingBlocks = tickList.size();
                 final int index = this.random.nextInt() & ((16 * 16 * 16) - 1);
@@ -180,24 +453,96 @@ public final class DensityTickSystem {
                 if (index >= tickingBlocks) {
                     continue;
                 }
+                ++hits;
 
                 final int location = (int) tickList.getRaw(index) & 0xFFFF;
                 final BlockState state = states.get(location);
-
-                final BlockPos pos = new BlockPos(
+                final BlockPos pos = this.position(
                         (location & 15) | offsetX,
                         ((location >>> (4 + 4)) & 15) | offsetY,
                         ((location >>> 4) & 15) | offsetZ
                 );
 
-                state.randomTick(this.level, pos, this.random);
-                if (this.doubleTickFluids) {
-                    final FluidState fluidState = state.getFluidState();
-                    if (fluidState.isRandomlyTicking()) {
-                        fluidState.randomTick(this.level, pos, this.random);
-                    }
-                }
+                this.dispatcher.dispatch(state, pos);
+            }
+            this.recordVanillaSampled(hits);
+        }
+    }
+
+    private void recordVanillaSampled(final int hits) {
+        if (this.metrics != null && RandomTickMetrics.enabled()) {
+            this.metrics.recordSampled(hits);
+        }
+    }
+
+    private BlockPos position(final int x, final int y, final int z) {
+        return this.collecting || RandomTickModule.DISPATCH_REUSE_MUTABLE_POS ? this.mutablePos.set(x, y, z) : new BlockPos(x, y, z);
+    }
+
+    private void ensureBatchCapacity(final int count) {
+        if (this.sampledLocations.length < count) {
+            final int capacity = Math.max(count, this.sampledLocations.length << 1);
+            this.sampledLocations = new int[capacity];
+            this.sampledGroups = new byte[capacity];
+            this.groupedLocations = new int[capacity];
+        }
+    }
+
+    private int addToBatch(final int index, final int location, final BlockState state, int groupCount) {
+        int group = 0;
+        while (group < groupCount && this.groupStates[group] != state) {
+            ++group;
+        }
+
+        if (group == groupCount) {
+            if (groupCount < MAX_GROUPS) {
+                this.groupStates[group] = state;
+                this.groupOffsets[group] = 0;
+                ++groupCount;
+            } else {
+                // too many distinct states, share the last group; dispatch re-reads the state anyway
+                group = MAX_GROUPS - 1;
             }
         }
+
+        this.sampledLocations[index] = location;
+        this.sampledGroups[index] = (byte) group;
+        ++this.groupOffsets[group];
+        return groupCount;
+    }
+
+    private void dispatchBatch(final PalettedContainer<BlockState> states, final int count, final int groupCount, final int offsetX, final int offsetY, final int offsetZ) {
+        if (count <= 0) {
+            return;
+        }
+
+        // counting sort by group: counts -> start offsets -> scatter
+        int start = 0;
+        for (int group = 0; group < groupCount; group++) {
+            final int size = this.groupOffsets[group];
+            this.groupOffsets[group] = start;
+            start += size;
+        }
+
+        final int[] grouped = this.groupedLocations;
+        for (int i = 0; i < count; i++) {
+            grouped[this.groupOffsets[this.sampledGroups[i]]++] = this.sampledLocations[i];
+        }
+        Arrays.fill(this.groupStates, 0, groupCount, null);
+
+        final boolean reusePos = this.collecting || RandomTickModule.DISPATCH_REUSE_MUTABLE_POS;
+        for (int i = 0; i < count; i++) {
+            final int location = grouped[i];
+            // earlier ticks in the batch may have changed this block since it was sampled
+            final BlockState state = states.get(location);
+            if (!state.isRandomlyTicking()) {
+                continue;
+            }
+
+            final int x = (location & 15) | offsetX;
+            final int y = ((location >>> 8) & 15) | offsetY;
+            final int z = ((location >>> 4) & 15) | offsetZ;
+            this.dispatcher.dispatch(state, reusePos ? this.mutablePos.set(x, y, z) : new BlockPos(x, y, z));
+        }
     }
 }
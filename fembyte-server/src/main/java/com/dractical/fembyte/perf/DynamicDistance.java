@@ -0,0 +1,91 @@
+package com.dractical.fembyte.perf;
+
+import com.dractical.fembyte.config.modules.performance.DynamicDistanceModule;
+import net.minecraft.server.level.ServerLevel;
+import org.bukkit.World;
+
+// Last degradation stage of a world's throttle: simulation distance goes down one chunk per step until
+// its minimum, then view distance does. Restoring walks the same steps back, view distance first.
+// Changes go through the world defaults, so players with their own distance set are left alone.
+final class DynamicDistance {
+
+    private static final int MIN_DISTANCE = 2;
+
+    private int steps;
+    private long lastChangeTick = Long.MIN_VALUE;
+    private int baseSimulation;
+    private int baseView;
+
+    void update(final ServerLevel level, final long tick, final boolean engage, final boolean restore) {
+        if (!DynamicDistanceModule.ENABLED) {
+            this.restore(level);
+            return;
+        }
+
+        final World world = level.getWorld();
+        if (this.steps == 0) {
+            // nothing applied, so whatever the world has now, including admin changes, is the base to restore to
+            this.baseSimulation = world.getSimulationDistance();
+            this.baseView = world.getViewDistance();
+        } else {
+            // the minimums may have been raised by a config reload
+            this.steps = Math.min(this.steps, this.simulationSteps() + this.viewSteps());
+        }
+        final long sinceChange = this.lastChangeTick == Long.MIN_VALUE ? Long.MAX_VALUE : tick - this.lastChangeTick;
+        if (engage) {
+            if (sinceChange < DynamicDistanceModule.STEP_COOLDOWN_TICKS) {
+                return;
+            }
+            if (this.steps < this.simulationSteps() + this.viewSteps()) {
+                ++this.steps;
+                this.lastChangeTick = tick;
+                this.apply(world);
+            }
+        } else if (restore && this.steps > 0 && sinceChange >= DynamicDistanceModule.RESTORE_COOLDOWN_TICKS) {
+            --this.steps;
+            this.lastChangeTick = tick;
+            this.apply(world);
+        }
+    }
+
+    void restore(final ServerLevel level) {
+        this.lastChangeTick = Long.MIN_VALUE;
+        if (this.steps > 0) {
+            this.steps = 0;
+            this.apply(level.getWorld());
+        }
+    }
+
+    int steps() {
+        return this.steps;
+    }
+
+    int simulationDistance() {
+        return this.baseSimulation - Math.min(this.steps, this.simulationSteps());
+    }
+
+    int viewDistance() {
+        return this.baseView - Math.min(Math.max(0, this.steps - this.simulationSteps()), this.viewSteps());
+    }
+
+    private int simulationSteps() {
+        return Math.max(0, this.baseSimulation - Math.max(MIN_DISTANCE, DynamicDistanceModule.MIN_SIMULATION_DISTANCE));
+    }
+
+    // view distance never goes below the lowest simulation distance, chunks simulated but not sent make no sense
+    private int viewSteps() {
+        final int minSimulation = this.baseSimulation - this.simulationSteps();
+        return Math.max(0, this.baseView - Math.max(Math.max(MIN_DISTANCE, DynamicDistanceModule.MIN_VIEW_DISTANCE), minSimulation));
+    }
+
+    private void apply(final World world) {
+        final int simulation = this.simulationDistance();
+        final int view = this.viewDistance();
+        if (world.getSimulationDistance() != simulation) {
+            world.setSimulationDistance(simulation);
+        }
+        if (world.getViewDistance() != view) {
+            world.setViewDistance(view);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.dractical.fembyte.perf;
+
+import ca.spottedleaf.moonrise.common.util.SimpleThreadUnsafeRandom;
+import ca.spottedleaf.moonrise.common.util.WorldUtil;
+import com.dractical.fembyte.concurrent.Async;
+import com.dractical.fembyte.config.modules.performance.RandomTickModule;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.CompletableFuture;
+
+// Phase one samples random tick positions for every ticking chunk on the cpu executor,
+// phase two (tryDispatch, main thread) only revalidates and ticks the sampled blocks.
+// Each chunk is sampled with its own random seeded from the world seed, game time and
+// chunk position, so the result does not depend on how the chunks were split across threads.
+public final class ParallelTickSampler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelTickSampler.class);
+
+    private final Reference2ObjectOpenHashMap<LevelChunk, Prepared> prepared = new Reference2ObjectOpenHashMap<>();
+    private long preparedGameTime = Long.MIN_VALUE;
+    private int preparedTickSpeed;
+
+    public void prepare(final ServerLevel level, final LevelChunk[] chunks, final int size, final int tickSpeed, final @Nullable RandomTickMetrics metrics) {
+        this.rollback();
+        if (tickSpeed <= 0 || size < Math.max(1, RandomTickModule.PARALLEL_SAMPLING_MIN_CHUNKS)) {
+            return;
+        }
+
+        final long gameTime = level.getGameTime();
+        final long seed = HashCommon.mix(level.getSeed() ^ HashCommon.mix(gameTime));
+        final Prepared[] results = new Prepared[size];
+        final int tasks = Math.min(Runtime.getRuntime().availableProcessors() * 2, Math.max(1, size / Math.max(1, RandomTickModule.PARALLEL_SAMPLING_CHUNKS_PER_TASK)));
+        final int perTask = (size + tasks - 1) / tasks;
+
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[tasks];
+        for (int task = 0; task < tasks; task++) {
+            final int from = task * perTask;
+            final int to = Math.min(size, from + perTask);
+            futures[task] = Async.runCpu(() -> sampleRange(chunks, from, to, results, seed, tickSpeed, metrics));
+        }
+
+        try {
+            CompletableFuture.allOf(futures).join();
+        } catch (final Exception ex) {
+            LOGGER.warn("Parallel random tick sampling failed; falling back to serial sampling for this tick.", ex);
+            return;
+        }
+
+        for (int i = 0; i < size; i++) {
+            this.prepared.put(chunks[i], results[i]);
+        }
+        this.preparedGameTime = gameTime;
+        this.preparedTickSpeed = tickSpeed;
+    }
+
+    public boolean tryDispatch(final LevelChunk chunk, final int tickSpeed, final RandomTickDispatcher dispatcher) {
+        if (this.preparedGameTime != chunk.getLevel().getGameTime() || this.preparedTickSpeed != tickSpeed) {
+            return false;
+        }
+
+        final Prepared prepared = this.prepared.remove(chunk);
+        if (prepared == null) {
+            return false;
+        }
+
+        final LevelChunkSection[] sections = chunk.getSections();
+        final int minSection = WorldUtil.getMinSection(chunk.getLevel());
+        final LongArrayList positions = prepared.positions();
+        final long[] raw = positions.elements();
+        for (int i = 0, len = positions.size(); i < len; i++) {
+            final long packed = raw[i];
+            final int x = BlockPos.getX(packed);
+            final int y = BlockPos.getY(packed);
+            final int z = BlockPos.getZ(packed);
+            final int location = ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+            // earlier random ticks this tick may have changed the block since it was sampled
+            final BlockState state = sections[(y >> 4) - minSection].states.get(location);
+            if (!state.isRandomlyTicking()) {
+                continue;
+            }
+
+            dispatcher.dispatch(state, new BlockPos(x, y, z));
+        }
+        return true;
+    }
+
+    // samples that are not dispatched get re-sampled serially, so first put back the carry and
+    // accumulators the sampling consumed; otherwise the chunk's lambda would be counted twice
+    public void discard(final LevelChunk chunk) {
+        if (this.preparedGameTime != chunk.getLevel().getGameTime()) {
+            // sampling was turned off since the last prepare, nothing else rolls those chunks back
+            this.rollback();
+            return;
+        }
+
+        final Prepared prepared = this.prepared.remove(chunk);
+        if (prepared != null) {
+            restore(chunk, prepared);
+        }
+    }
+
+    // chunks that were sampled but never reached the random tick loop, e.g. because the throttle skipped them
+    private void rollback() {
+        if (!this.prepared.isEmpty()) {
+            for (final Reference2ObjectMap.Entry<LevelChunk, Prepared> entry : this.prepared.reference2ObjectEntrySet()) {
+                restore(entry.getKey(), entry.getValue());
+            }
+            this.prepared.clear();
+        }
+        this.preparedGameTime = Long.MIN_VALUE;
+    }
+
+    private static void restore(final LevelChunk chunk, final Prepared prepared) {
+        final LevelChunkSection[] sections = chunk.getSections();
+        final float[] accumulators = prepared.accumulators();
+        for (int i = 0, len = Math.min(sections.length, accumulators.length); i < len; i++) {
+            sections[i].fembyte$setDensityAccumulator(accumulators[i]);
+        }
+    }
+
+    private static void sampleRange(final LevelChunk[] chunks, final int from, final int to, final Prepared[] results, final long seed, final int tickSpeed, final @Nullable RandomTickMetrics metrics) {
+        final Collector collector = new Collector();
+        final SimpleThreadUnsafeRandom random = new SimpleThreadUnsafeRandom(seed);
+        final DensityTickSystem sampler = DensityTickSystem.collecting(collector, random, metrics);
+        for (int i = from; i < to; i++) {
+            final LevelChunk chunk = chunks[i];
+            final LongArrayList positions = new LongArrayList();
+            final float[] accumulators = accumulators(chunk.getSections());
+            collector.positions = positions;
+            random.setSeed(HashCommon.mix(seed ^ chunk.getPos().toLong()));
+            sampler.tick(chunk, tickSpeed);
+            results[i] = new Prepared(positions, accumulators);
+        }
+    }
+
+    private static float[] accumulators(final LevelChunkSection[] sections) {
+        final float[] accumulators = new float[sections.length];
+        for (int i = 0; i < sections.length; i++) {
+            accumulators[i] = sections[i].fembyte$getDensityAccumulator();
+        }
+        return accumulators;
+    }
+
+    private record Prepared(LongArrayList positions, float[] accumulators) {
+    }
+
+    private static final class Collector implements RandomTickDispatcher {
+        private LongArrayList positions;
+
+        @Override
+        public void dispatch(final BlockState state, final BlockPos pos) {
+            this.positions.add(pos.asLong());
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.dractical.fembyte.perf;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+// Alias tables for Poisson(lambda) at quantised lambdas. A sample consumes one random long:
+// the top 16 bits stochastically round lambda to a neighbouring table (keeping the mean exact),
+// the middle bits pick an alias column and the low 31 bits decide between the column and its alias.
+public final class PoissonTable {
+
+    // exp(-lambda) leaves the normal double range just past 708 and underflows to zero around 745
+    public static final double MAX_LAMBDA = 700.0D;
+    private static final double TAIL_EPSILON = 0x1.0p-40;
+    private static final double ROUNDING_SCALE = 65536.0D;
+    private static final long ACCEPT_ALL = 1L << 31;
+    private static final int MAX_COLUMN_BITS = 16;
+
+    private static volatile @Nullable PoissonTable current;
+
+    private final double maxLambda;
+    private final double resolution;
+    private final long[][] tables;
+    private final int[] columnMasks;
+
+    private PoissonTable(final double maxLambda, final int resolution) {
+        this.maxLambda = maxLambda;
+        this.resolution = resolution;
+
+        final int steps = (int) Math.ceil(maxLambda * resolution);
+        this.tables = new long[steps + 2][];
+        this.columnMasks = new int[steps + 2];
+        for (int i = 0; i < this.tables.length; i++) {
+            final long[] table = buildAliasTable((double) i / resolution);
+            this.tables[i] = table;
+            this.columnMasks[i] = table.length - 1;
+        }
+    }
+
+    public static @Nullable PoissonTable current() {
+        return current;
+    }
+
+    public static void rebuild(final double maxLambda, final int resolution) {
+        if (maxLambda <= 0.0D || resolution <= 0) {
+            current = null;
+            return;
+        }
+
+        current = new PoissonTable(Math.min(maxLambda, MAX_LAMBDA), resolution);
+    }
+
+    public double maxLambda() {
+        return this.maxLambda;
+    }
+
+    public int sample(final double lambda, final long bits) {
+        final double scaled = lambda * this.resolution;
+        int index = (int) scaled;
+        if ((bits >>> 48) < (long) ((scaled - index) * ROUNDING_SCALE)) {
+            ++index;
+        }
+
+        final long[] table = this.tables[index];
+        final int column = (int) (bits >>> 31) & this.columnMasks[index];
+        final long entry = table[column];
+        return (bits & 0x7FFFFFFFL) < (entry >>> 32) ? column : (int) entry;
+    }
+
+    private static long[] buildAliasTable(final double lambda) {
+        final double[] pmf = poissonPmf(lambda);
+        final int columns = Math.max(1, Integer.highestOneBit(Math.max(1, pmf.length - 1)) << 1);
+        if (Integer.numberOfTrailingZeros(columns) > MAX_COLUMN_BITS) {
+            throw new IllegalArgumentException("Poisson table support too large for lambda " + lambda);
+        }
+
+        // Vose's alias method
+        final double[] scaled = new double[columns];
+        for (int i = 0; i < pmf.length; i++) {
+            scaled[i] = pmf[i] * columns;
+        }
+
+        final int[] small = new int[columns];
+        final int[] large = new int[columns];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < columns; i++) {
+            if (scaled[i] < 1.0D) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+
+        final long[] table = new long[columns];
+        while (smallCount > 0 && largeCount > 0) {
+            final int less = small[--smallCount];
+            final int more = large[--largeCount];
+            table[less] = pack(scaled[less], more);
+            scaled[more] = (scaled[more] + scaled[less]) - 1.0D;
+            if (scaled[more] < 1.0D) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+
+        // leftovers only differ from 1.0 by rounding error
+        while (largeCount > 0) {
+            final int column = large[--largeCount];
+            table[column] = (ACCEPT_ALL << 32) | column;
+        }
+        while (smallCount > 0) {
+            final int column = small[--smallCount];
+            table[column] = (ACCEPT_ALL << 32) | column;
+        }
+
+        return table;
+    }
+
+    private static long pack(final double probability, final int alias) {
+        final long threshold = Math.max(0L, Math.min(ACCEPT_ALL, Math.round(probability * ACCEPT_ALL)));
+        return (threshold << 32) | alias;
+    }
+
+    private static double[] poissonPmf(final double lambda) {
+        if (lambda <= 0.0D) {
+            return new double[]{1.0D};
+        }
+
+        final int hardLimit = (1 << MAX_COLUMN_BITS) - 1;
+        double[] pmf = new double[Math.max(16, (int) Math.ceil(lambda * 2.0D) + 16)];
+        double probability = Math.exp(-lambda);
+        double remaining = 1.0D - probability;
+        pmf[0] = probability;
+
+        int k = 0;
+        while (k < hardLimit && (k < lambda || remaining > TAIL_EPSILON)) {
+            ++k;
+            probability *= lambda / k;
+            if (k >= pmf.length) {
+                pmf = Arrays.copyOf(pmf, pmf.length << 1);
+            }
+            pmf[k] = probability;
+            remaining -= probability;
+        }
+
+        // fold the truncated tail into the last bucket so the table still sums to one
+        pmf[k] += Math.max(0.0D, remaining);
+        return Arrays.copyOf(pmf, k + 1);
+    }
+}
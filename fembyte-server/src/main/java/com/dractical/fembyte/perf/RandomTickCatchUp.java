@@ -0,0 +1,145 @@
+package com.dractical.fembyte.perf;
+
+import ca.spottedleaf.moonrise.common.list.ShortList;
+import ca.spottedleaf.moonrise.common.util.WorldUtil;
+import ca.spottedleaf.moonrise.patches.block_counting.BlockCountingChunkSection;
+import com.dractical.fembyte.config.modules.performance.RandomTickModule;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+
+// Remembers when each chunk last random ticked. When a chunk starts ticking again after a gap, the
+// missed ticks per section are drawn from Poisson(missed game ticks * lambda), capped, and replayed
+// over a few game ticks. The history is in memory only, so it covers unloads but not restarts.
+final class RandomTickCatchUp {
+
+    private static final long NO_TICK = Long.MIN_VALUE;
+    private static final int PRUNE_INTERVAL = 1200;
+    private static final double SECTION_INVERSE_VOLUME = 1.0D / (16.0D * 16.0D * 16.0D);
+
+    private final Long2LongOpenHashMap lastTicked = new Long2LongOpenHashMap();
+    private final Long2ObjectOpenHashMap<Pending> pending = new Long2ObjectOpenHashMap<>();
+    private long nextPrune = Long.MIN_VALUE;
+
+    RandomTickCatchUp() {
+        this.lastTicked.defaultReturnValue(NO_TICK);
+    }
+
+    void tick(final DensityTickSystem system, final LevelChunk chunk, final int tickSpeed, final long gameTime, final boolean budgetExhausted) {
+        this.prune(gameTime);
+
+        final ChunkPos chunkPos = chunk.getPos();
+        final long key = chunkPos.toLong();
+        final long previous = this.lastTicked.put(key, gameTime);
+        if (previous != NO_TICK && previous < gameTime) {
+            final long missed = Math.min(gameTime - previous - 1L, Math.max(0L, RandomTickModule.CATCH_UP_MAX_MISSED_TICKS));
+            if (missed >= Math.max(1L, RandomTickModule.CATCH_UP_MIN_MISSED_TICKS) && tickSpeed > 0) {
+                this.schedule(system, chunk, key, missed, tickSpeed);
+            }
+        }
+
+        if (budgetExhausted) {
+            return;
+        }
+
+        final Pending entry = this.pending.get(key);
+        if (entry != null && entry.replay(system, chunk)) {
+            this.pending.remove(key);
+        }
+    }
+
+    void markTicked(final long key, final long gameTime) {
+        this.prune(gameTime);
+        this.lastTicked.put(key, gameTime);
+    }
+
+    private void schedule(final DensityTickSystem system, final LevelChunk chunk, final long key, final long missed, final int tickSpeed) {
+        final LevelChunkSection[] sections = chunk.getSections();
+        final int[] ticks = new int[sections.length];
+        int most = 0;
+        for (int sectionIndex = 0; sectionIndex < sections.length; sectionIndex++) {
+            final LevelChunkSection section = sections[sectionIndex];
+            if (!section.isRandomlyTickingBlocks()) {
+                continue;
+            }
+
+            final int tickingBlocks = ((BlockCountingChunkSection) section).moonrise$getTickingBlockList().size();
+            final double lambda = missed * tickSpeed * tickingBlocks * SECTION_INVERSE_VOLUME * RandomTickModule.CATCH_UP_REPLAY_FRACTION;
+            int sampled = system.samplePoisson(lambda);
+            if (RandomTickModule.CATCH_UP_MAX_TICKS_PER_SECTION > 0) {
+                sampled = Math.min(sampled, RandomTickModule.CATCH_UP_MAX_TICKS_PER_SECTION);
+            }
+            ticks[sectionIndex] = sampled;
+            most = Math.max(most, sampled);
+        }
+
+        if (most > 0) {
+            int slices = Math.max(1, RandomTickModule.CATCH_UP_SPREAD_TICKS);
+            if (RandomTickModule.DENSITY_MAX_TICKS_PER_SECTION > 0) {
+                slices = Math.max(slices, (most + RandomTickModule.DENSITY_MAX_TICKS_PER_SECTION - 1) / RandomTickModule.DENSITY_MAX_TICKS_PER_SECTION);
+            }
+            this.pending.put(key, new Pending(ticks, slices));
+        } else {
+            this.pending.remove(key);
+        }
+    }
+
+    private void prune(final long gameTime) {
+        if (gameTime < this.nextPrune) {
+            return;
+        }
+        this.nextPrune = gameTime + PRUNE_INTERVAL;
+
+        final long forgetAfter = RandomTickModule.CATCH_UP_FORGET_AFTER_TICKS;
+        if (forgetAfter > 0L) {
+            this.lastTicked.long2LongEntrySet().removeIf(entry -> gameTime - entry.getLongValue() > forgetAfter);
+        }
+        // replays for chunks that stopped ticking are dropped, the next catch-up will cover them
+        this.pending.keySet().removeIf(key -> {
+            final long last = this.lastTicked.get(key);
+            return last == NO_TICK || gameTime - last > PRUNE_INTERVAL;
+        });
+    }
+
+    private static final class Pending {
+        private final int[] remaining;
+        private int slicesLeft;
+
+        private Pending(final int[] remaining, final int slices) {
+            this.remaining = remaining;
+            this.slicesLeft = slices;
+        }
+
+        // returns true once everything has been replayed
+        boolean replay(final DensityTickSystem system, final LevelChunk chunk) {
+            final LevelChunkSection[] sections = chunk.getSections();
+            final int minSection = WorldUtil.getMinSection(chunk.getLevel());
+            final ChunkPos chunkPos = chunk.getPos();
+            final int slices = this.slicesLeft--;
+            for (int sectionIndex = 0, len = Math.min(sections.length, this.remaining.length); sectionIndex < len; sectionIndex++) {
+                final int left = this.remaining[sectionIndex];
+                if (left <= 0) {
+                    continue;
+                }
+
+                final int ticks = (left + slices - 1) / slices;
+                this.remaining[sectionIndex] = left - ticks;
+
+                final LevelChunkSection section = sections[sectionIndex];
+                if (!section.isRandomlyTickingBlocks()) {
+                    continue;
+                }
+
+                final ShortList tickList = ((BlockCountingChunkSection) section).moonrise$getTickingBlockList();
+                if (tickList.size() <= 0) {
+                    continue;
+                }
+
+                system.dispatchRandomTicks(section, tickList, ticks, chunkPos.x << 4, (sectionIndex + minSection) << 4, chunkPos.z << 4);
+            }
+            return this.slicesLeft <= 0;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.dractical.fembyte.perf;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.block.state.BlockState;
+
+@FunctionalInterface
+public interface RandomTickDispatcher {
+    void dispatch(BlockState state, BlockPos pos);
+}
@@ -0,0 +1,60 @@
+package com.dractical.fembyte.perf;
+
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.MangrovePropaguleBlock;
+import net.minecraft.world.level.block.state.BlockState;
+
+import javax.annotation.Nullable;
+import java.util.BitSet;
+import java.util.Set;
+
+// Per-BlockState bitset of randomly ticking states whose randomTick cannot do anything.
+// Vanilla already drops most of these from the ticking list through isRandomlyTicking
+// (mature crops, persistent leaves, max-age vines and kelp), so the built-in rules only cover the rest.
+public final class RandomTickFilter {
+
+    private static volatile @Nullable BitSet inert;
+
+    private RandomTickFilter() {
+    }
+
+    public static void rebuild(final boolean enabled, final Set<ResourceLocation> extraBlocks) {
+        if (!enabled) {
+            inert = null;
+            return;
+        }
+
+        final BitSet states = new BitSet(Block.BLOCK_STATE_REGISTRY.size());
+        for (final BlockState state : Block.BLOCK_STATE_REGISTRY) {
+            if (state.isRandomlyTicking() && (isBuiltinInert(state) || extraBlocks.contains(BuiltInRegistries.BLOCK.getKey(state.getBlock())))) {
+                states.set(Block.getId(state));
+            }
+        }
+
+        inert = states.isEmpty() ? null : states;
+    }
+
+    // false while there is nothing to filter, so callers can skip the per-sample lookup
+    public static boolean isActive() {
+        return inert != null;
+    }
+
+    public static boolean isInert(final BlockState state) {
+        final BitSet states = inert;
+        return states != null && states.get(Block.getId(state));
+    }
+
+    public static int inertStates() {
+        final BitSet states = inert;
+        return states == null ? 0 : states.cardinality();
+    }
+
+    private static boolean isBuiltinInert(final BlockState state) {
+        // hanging propagules only age, and stop doing anything once fully grown
+        return state.getBlock() instanceof MangrovePropaguleBlock
+                && state.getValue(MangrovePropaguleBlock.HANGING)
+                && state.getValue(MangrovePropaguleBlock.AGE) == MangrovePropaguleBlock.MAX_AGE;
+    }
+}
@@ -0,0 +1,94 @@
+package com.dractical.fembyte.perf;
+
+import com.dractical.fembyte.config.modules.performance.RandomTickModule;
+import it.unimi.dsi.fastutil.HashCommon;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.level.ChunkPos;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Distance based level-of-detail for density random ticking. A ring with rate r either ticks its chunks
+// every 1/r game ticks with lambda scaled up by the same factor (compensated, same expected growth),
+// or every tick with lambda scaled down by r.
+public final class RandomTickLod {
+
+    private long snapshotGameTime = Long.MIN_VALUE;
+    private int[] playerChunkX = new int[8];
+    private int[] playerChunkZ = new int[8];
+    private int players;
+
+    // returns the lambda multiplier for the chunk this tick, 0 when the chunk is skipped
+    public double lambdaScale(final ServerLevel level, final ChunkPos chunkPos, final long gameTime) {
+        final Ring[] rings = RandomTickModule.LOD_RINGS;
+        if (rings.length == 0) {
+            return 1.0D;
+        }
+
+        if (gameTime != this.snapshotGameTime) {
+            this.snapshot(level, gameTime);
+        }
+
+        final Ring ring = ringFor(rings, this.nearestPlayerDistance(chunkPos.x, chunkPos.z));
+        if (ring.rate() >= 1.0D) {
+            return 1.0D;
+        }
+        if (ring.rate() <= 0.0D) {
+            return 0.0D;
+        }
+
+        if (!RandomTickModule.LOD_COMPENSATE) {
+            return ring.rate();
+        }
+
+        final int interval = ring.interval();
+        final int slot = HashCommon.mix((int) (chunkPos.toLong() ^ (chunkPos.toLong() >>> 32)));
+        return Math.floorMod(gameTime + slot, interval) == 0 ? interval : 0.0D;
+    }
+
+    private void snapshot(final ServerLevel level, final long gameTime) {
+        final List<ServerPlayer> players = level.players();
+        final int size = players.size();
+        if (this.playerChunkX.length < size) {
+            this.playerChunkX = Arrays.copyOf(this.playerChunkX, Math.max(size, this.playerChunkX.length << 1));
+            this.playerChunkZ = Arrays.copyOf(this.playerChunkZ, this.playerChunkX.length);
+        }
+
+        for (int i = 0; i < size; i++) {
+            final ServerPlayer player = players.get(i);
+            this.playerChunkX[i] = player.getBlockX() >> 4;
+            this.playerChunkZ[i] = player.getBlockZ() >> 4;
+        }
+        this.players = size;
+        this.snapshotGameTime = gameTime;
+    }
+
+    private int nearestPlayerDistance(final int chunkX, final int chunkZ) {
+        int nearest = Integer.MAX_VALUE;
+        for (int i = 0; i < this.players; i++) {
+            final int distance = Math.max(Math.abs(this.playerChunkX[i] - chunkX), Math.abs(this.playerChunkZ[i] - chunkZ));
+            if (distance < nearest) {
+                nearest = distance;
+            }
+        }
+        return nearest;
+    }
+
+    private static Ring ringFor(final Ring[] rings, final int distance) {
+        for (final Ring ring : rings) {
+            if (distance <= ring.maxDistance()) {
+                return ring;
+            }
+        }
+        return rings[rings.length - 1];
+    }
+
+    public record Ring(int maxDistance, double rate, int interval) {
+
+        public static Ring of(final int maxDistance, final double rate) {
+            final double clamped = Math.max(0.0D, Math.min(1.0D, rate));
+            return new Ring(maxDistance, clamped, clamped <= 0.0D ? 0 : Math.max(1, (int) Math.round(1.0D / clamped)));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.dractical.fembyte.perf;
+
+import com.dractical.fembyte.config.modules.performance.RandomTickModule;
+import net.minecraft.world.level.block.Block;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters for random ticking, only updated while random-tick.metrics is enabled.
+// Sampling may run on the parallel sampler threads, so everything is striped.
+public final class RandomTickMetrics {
+
+    private static final Map<String, RandomTickMetrics> WORLDS = new ConcurrentHashMap<>();
+
+    private final String world;
+    private final LongAdder chunks = new LongAdder();
+    private final LongAdder sampled = new LongAdder();
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final Map<Block, LongAdder> appliedByBlock = new ConcurrentHashMap<>();
+    private final EnumMap<RandomTickModule.DensityDistribution, Drift> drift = new EnumMap<>(RandomTickModule.DensityDistribution.class);
+
+    private RandomTickMetrics(final String world) {
+        this.world = world;
+        for (final RandomTickModule.DensityDistribution distribution : RandomTickModule.DensityDistribution.values()) {
+            this.drift.put(distribution, new Drift());
+        }
+    }
+
+    public static RandomTickMetrics forWorld(final String world) {
+        return WORLDS.computeIfAbsent(world, RandomTickMetrics::new);
+    }
+
+    public static void remove(final String world) {
+        WORLDS.remove(world);
+    }
+
+    public static boolean enabled() {
+        return RandomTickModule.METRICS;
+    }
+
+    public static void reset() {
+        WORLDS.values().forEach(RandomTickMetrics::clear);
+    }
+
+    public void recordChunk(final long elapsedNanos) {
+        this.chunks.increment();
+        this.nanos.add(elapsedNanos);
+    }
+
+    public void recordSampled(final int count) {
+        if (count > 0) {
+            this.sampled.add(count);
+        }
+    }
+
+    public void recordExpected(final RandomTickModule.DensityDistribution distribution, final double expected, final int ticks) {
+        final Drift entry = this.drift.get(distribution);
+        entry.expected.add(expected);
+        entry.ticks.add(ticks);
+    }
+
+    public void recordApplied(final Block block) {
+        this.applied.increment();
+        this.appliedByBlock.computeIfAbsent(block, ignored -> new LongAdder()).increment();
+    }
+
+    private void clear() {
+        this.chunks.reset();
+        this.sampled.reset();
+        this.applied.reset();
+        this.nanos.reset();
+        this.appliedByBlock.clear();
+        this.drift.values().forEach(Drift::clear);
+    }
+
+    public static List<WorldSnapshot> snapshotWorlds(final int topBlocks) {
+        final List<WorldSnapshot> worlds = new ArrayList<>(WORLDS.size());
+        for (final RandomTickMetrics metrics : WORLDS.values()) {
+            final EnumMap<RandomTickModule.DensityDistribution, DriftSnapshot> drift = new EnumMap<>(RandomTickModule.DensityDistribution.class);
+            metrics.drift.forEach((distribution, entry) -> drift.put(distribution, new DriftSnapshot(entry.expected.sum(), entry.ticks.sum())));
+            worlds.add(new WorldSnapshot(metrics.world, metrics.chunks.sum(), metrics.sampled.sum(), metrics.applied.sum(), metrics.nanos.sum(), drift, metrics.topBlocks(topBlocks)));
+        }
+        worlds.sort(Comparator.comparing(WorldSnapshot::world));
+        return worlds;
+    }
+
+    private List<BlockSnapshot> topBlocks(final int limit) {
+        final List<BlockSnapshot> blocks = new ArrayList<>(this.appliedByBlock.size());
+        this.appliedByBlock.forEach((block, count) -> blocks.add(new BlockSnapshot(block, count.sum())));
+        blocks.sort(Comparator.comparingLong(BlockSnapshot::applied).reversed());
+        return blocks.size() > limit ? blocks.subList(0, limit) : blocks;
+    }
+
+    private static final class Drift {
+        private final DoubleAdder expected = new DoubleAdder();
+        private final LongAdder ticks = new LongAdder();
+
+        private void clear() {
+            this.expected.reset();
+            this.ticks.reset();
+        }
+    }
+
+    public record WorldSnapshot(String world, long chunks, long sampled, long applied, long nanos,
+                                Map<RandomTickModule.DensityDistribution, DriftSnapshot> drift, List<BlockSnapshot> topBlocks) {
+    }
+
+    // relative drift of the actually rolled ticks against the expected (lambda plus carry) total
+    public record DriftSnapshot(double expected, long ticks) {
+        public double relative() {
+            return this.expected <= 0.0D ? 0.0D : (this.ticks - this.expected) / this.expected;
+        }
+    }
+
+    public record BlockSnapshot(Block block, long applied) {
+    }
+}
@@ -0,0 +1,136 @@
+package com.dractical.fembyte.perf;
+
+// Cost model for the BUDGET throttle mode. Collects the nanoseconds spent in each throttled category
+// during a server tick, keeps smoothed per-category estimates of what an unthrottled tick would cost,
+// and plans the mildest intervals and random tick scale predicted to fit a target MSPT.
+final class ThrottleBudget {
+
+    private static final double RANDOM_SCALE_STEP = 0.05D;
+
+    private long passiveNanos;
+    private long hostileNanos;
+    private long randomNanos;
+    private int passiveRun;
+    private int passiveSkipped;
+    private int hostileRun;
+    private int hostileSkipped;
+
+    // smoothed estimates, in milliseconds per tick (per mob for the *PerMob fields)
+    private double passivePerMob;
+    private double hostilePerMob;
+    private double passiveMobs;
+    private double hostileMobs;
+    private double randomFull;
+    private double other;
+    private boolean primed;
+
+    void recordMob(final boolean hostile, final long nanos) {
+        if (hostile) {
+            this.hostileNanos += nanos;
+            ++this.hostileRun;
+        } else {
+            this.passiveNanos += nanos;
+            ++this.passiveRun;
+        }
+    }
+
+    void recordSkipped(final boolean hostile) {
+        if (hostile) {
+            ++this.hostileSkipped;
+        } else {
+            ++this.passiveSkipped;
+        }
+    }
+
+    void recordRandom(final long nanos) {
+        this.randomNanos += nanos;
+    }
+
+    // folds the counters of the tick that just finished into the estimates
+    void complete(final double tickMspt, final double appliedScale, final int window) {
+        final double passive = this.passiveNanos / 1_000_000.0D;
+        final double hostile = this.hostileNanos / 1_000_000.0D;
+        final double random = this.randomNanos / 1_000_000.0D;
+        final double alpha = !this.primed || window <= 1 ? 1.0D : 2.0D / (window + 1.0D);
+
+        if (this.passiveRun > 0) {
+            this.passivePerMob = smooth(this.passivePerMob, passive / this.passiveRun, alpha);
+        }
+        if (this.hostileRun > 0) {
+            this.hostilePerMob = smooth(this.hostilePerMob, hostile / this.hostileRun, alpha);
+        }
+        this.passiveMobs = smooth(this.passiveMobs, this.passiveRun + this.passiveSkipped, alpha);
+        this.hostileMobs = smooth(this.hostileMobs, this.hostileRun + this.hostileSkipped, alpha);
+        if (appliedScale > 0.0D) {
+            this.randomFull = smooth(this.randomFull, random / appliedScale, alpha);
+        }
+        this.other = smooth(this.other, Math.max(0.0D, tickMspt - passive - hostile - random), alpha);
+        this.primed = true;
+        this.clearTick();
+    }
+
+    void reset() {
+        this.clearTick();
+        this.passivePerMob = 0.0D;
+        this.hostilePerMob = 0.0D;
+        this.passiveMobs = 0.0D;
+        this.hostileMobs = 0.0D;
+        this.randomFull = 0.0D;
+        this.other = 0.0D;
+        this.primed = false;
+    }
+
+    private void clearTick() {
+        this.passiveNanos = 0L;
+        this.hostileNanos = 0L;
+        this.randomNanos = 0L;
+        this.passiveRun = 0;
+        this.passiveSkipped = 0;
+        this.hostileRun = 0;
+        this.hostileSkipped = 0;
+    }
+
+    private static double smooth(final double current, final double sample, final double alpha) {
+        return current + alpha * (sample - current);
+    }
+
+    // greedily takes whichever single step saves the most predicted time until the prediction fits the target
+    Plan plan(final double targetMspt, final int passiveMax, final int hostileMax, final double minScale) {
+        final double passive = this.passivePerMob * this.passiveMobs;
+        final double hostile = this.hostilePerMob * this.hostileMobs;
+        final double random = this.randomFull;
+        final double clampedMinScale = Math.max(0.0D, Math.min(1.0D, minScale));
+
+        int passiveInterval = 1;
+        int hostileInterval = 1;
+        double scale = 1.0D;
+        double predicted = this.other + passive + hostile + random;
+        while (predicted > targetMspt) {
+            final double passiveSaving = passiveInterval < passiveMax ? passive / passiveInterval - passive / (passiveInterval + 1) : 0.0D;
+            final double hostileSaving = hostileInterval < hostileMax ? hostile / hostileInterval - hostile / (hostileInterval + 1) : 0.0D;
+            final double nextScale = Math.max(clampedMinScale, scale - RANDOM_SCALE_STEP);
+            final double randomSaving = random * (scale - nextScale);
+
+            final double best = Math.max(passiveSaving, Math.max(hostileSaving, randomSaving));
+            if (best <= 0.0D) {
+                break;
+            }
+            if (best == randomSaving) {
+                scale = nextScale;
+            } else if (best == hostileSaving) {
+                ++hostileInterval;
+            } else {
+                ++passiveInterval;
+            }
+            predicted -= best;
+        }
+        return new Plan(passiveInterval, hostileInterval, scale, predicted);
+    }
+
+    double predictedUnthrottled() {
+        return this.other + this.passivePerMob * this.passiveMobs + this.hostilePerMob * this.hostileMobs + this.randomFull;
+    }
+
+    record Plan(int passiveInterval, int hostileInterval, double randomScale, double predictedMspt) {
+    }
+}
@@ -0,0 +1,42 @@
+package com.dractical.fembyte.perf;
+
+import net.minecraft.world.entity.Mob;
+import net.minecraft.world.entity.ai.Brain;
+import net.minecraft.world.entity.ai.memory.ExpirableValue;
+import net.minecraft.world.entity.animal.Animal;
+import net.minecraft.world.entity.animal.Chicken;
+
+import java.util.Optional;
+
+// Advances the time based counters a full tick would have moved while a mob was throttled, right
+// before its next full tick. Age, and with it the breeding cooldown, already advances in
+// AgeableMob.inactiveTick and is left alone.
+final class ThrottleCatchUp {
+
+    private ThrottleCatchUp() {
+    }
+
+    static void apply(final Mob mob, final int skipped) {
+        if (mob instanceof Animal animal) {
+            final int inLove = animal.getInLoveTime();
+            if (inLove > 0) {
+                animal.setInLoveTime(Math.max(0, inLove - skipped));
+            }
+        }
+        if (mob instanceof Chicken chicken && !chicken.isBaby()) {
+            // keep at least one tick so the egg is laid by the regular tick code
+            chicken.eggTime = Math.max(1, chicken.eggTime - skipped);
+        }
+        tickMemories(mob.getBrain(), skipped);
+    }
+
+    // brain memory timeouts carry cooldowns like ram, play dead or admire item; a timeout that runs out
+    // stays at zero, so the next brain tick forgets the memory like it would have after the skipped ticks
+    static void tickMemories(final Brain<?> brain, final int ticks) {
+        for (final Optional<? extends ExpirableValue<?>> memory : brain.getMemories().values()) {
+            if (memory.isPresent()) {
+                memory.get().fembyte$advance(ticks);
+            }
+        }
+    }
+}
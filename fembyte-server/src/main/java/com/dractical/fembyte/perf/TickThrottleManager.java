@@ -4,11 +4,18 @@ import com.dractical.fembyte.config.modules.performance.TickThrottleModule;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.entity.Entity;
-import net.minecraft.world.entity.Mob;
-import net.minecraft.world.entity.MobCategory;
+import net.minecraft.world.entity.npc.Villager;
+import net.minecraft.world.level.block.entity.TickingBlockEntity;
 
 import javax.annotation.Nullable;
-
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps one WorldThrottle per world, so a lagging world only throttles itself. Worlds tick one after
+// another on the main thread; everything called from inside a world tick goes to that world's state.
 public final class TickThrottleManager {
 
     private static final TickThrottleManager INSTANCE = new TickThrottleManager();
@@ -17,21 +24,13 @@ public final class TickThrottleManager {
         return INSTANCE;
     }
 
-    private long lastServerTick = Long.MIN_VALUE;
-    private double currentTps = 20.0D;
-
-    private double randomTickScale = 1.0D;
-    private int passiveInterval = 1;
-    private int hostileInterval = 1;
-
-    private long passiveCursor = 0L;
-    private long hostileCursor = 0L;
-    private boolean passiveAllowedThisTick = true;
-    private boolean hostileAllowedThisTick = true;
+    private final Map<String, WorldThrottle> worlds = new ConcurrentHashMap<>();
+    private @Nullable WorldThrottle current;
 
-    private long suppressedRandomTicks = 0L;
-    private long suppressedPassiveTicks = 0L;
-    private long suppressedHostileTicks = 0L;
+    private long lastServerTick = Long.MIN_VALUE;
+    // time of the last server tick not spent inside any world, charged to every world
+    private double sharedMspt = 0.0D;
+    private long worldNanosThisTick = 0L;
 
     private TickThrottleManager() {
     }
@@ -39,175 +38,108 @@ public final class TickThrottleManager {
     public void beginWorldTick(final ServerLevel level, final boolean runsNormally) {
         final MinecraftServer server = level.getServer();
         final int currentTick = server.getTickCount();
-        if (this.lastServerTick == currentTick) {
-            return;
-        }
-
-        this.lastServerTick = currentTick;
-        if (!TickThrottleModule.ENABLED || !runsNormally) {
-            this.resetState();
-            return;
-        }
-
-        this.refreshState(server);
-    }
-
-    private void resetState() {
-        this.currentTps = 20.0D;
-        this.randomTickScale = 1.0D;
-        this.passiveInterval = 1;
-        this.hostileInterval = 1;
-        this.passiveCursor = 0L;
-        this.hostileCursor = 0L;
-        this.passiveAllowedThisTick = true;
-        this.hostileAllowedThisTick = true;
-    }
-
-    private void refreshState(final MinecraftServer server) {
-        final double mspt = server.getAverageTickTimeNanos() / 1_000_000.0D;
-        double calculatedTps = mspt <= 0.0D ? 20.0D : Math.min(20.0D, 1000.0D / Math.max(mspt, 0.0001D));
-        this.currentTps = Math.max(0.0D, Math.min(20.0D, calculatedTps));
-
-        this.randomTickScale = this.computeScale(
-                this.currentTps,
-                TickThrottleModule.RANDOM_ACTIVATION_TPS,
-                TickThrottleModule.RANDOM_MIN_TPS,
-                TickThrottleModule.RANDOM_MIN_SCALE
-        );
-
-        this.passiveInterval = this.computeInterval(
-                this.currentTps,
-                TickThrottleModule.PASSIVE_ACTIVATION_TPS,
-                TickThrottleModule.PASSIVE_MIN_TPS,
-                TickThrottleModule.PASSIVE_MAX_INTERVAL
-        );
-        this.hostileInterval = this.computeInterval(
-                this.currentTps,
-                TickThrottleModule.HOSTILE_ACTIVATION_TPS,
-                TickThrottleModule.HOSTILE_MIN_TPS,
-                TickThrottleModule.HOSTILE_MAX_INTERVAL
-        );
-
-        if (this.passiveInterval <= 1) {
-            this.passiveAllowedThisTick = true;
-            this.passiveCursor = 0L;
-        } else {
-            this.passiveAllowedThisTick = (this.passiveCursor++ % this.passiveInterval) == 0;
+        if (this.lastServerTick != currentTick) {
+            this.lastServerTick = currentTick;
+            // duration of the last completed tick; getAverageTickTimeNanos lags a 100 tick window behind
+            final long serverNanos = server.getTickTimesNanos()[Math.floorMod(currentTick - 1, 100)];
+            this.sharedMspt = Math.max(0L, serverNanos - this.worldNanosThisTick) / 1_000_000.0D;
+            this.worldNanosThisTick = 0L;
         }
 
-        if (this.hostileInterval <= 1) {
-            this.hostileAllowedThisTick = true;
-            this.hostileCursor = 0L;
-        } else {
-            this.hostileAllowedThisTick = (this.hostileCursor++ % this.hostileInterval) == 0;
-        }
+        final WorldThrottle world = this.worlds.computeIfAbsent(level.getWorld().getName(), WorldThrottle::new);
+        this.current = world;
+        world.begin(level, currentTick, runsNormally, this.sharedMspt);
     }
 
-    private double computeScale(final double tps, final double activationTps, final double minTps, final double minScale) {
-        final double severity = this.computeSeverity(tps, activationTps, minTps);
-        if (severity <= 0.0D) {
-            return 1.0D;
-        }
-
-        final double clampedMinScale = Math.max(0.0D, Math.min(1.0D, minScale));
-        final double delta = 1.0D - clampedMinScale;
-        return Math.max(clampedMinScale, 1.0D - severity * delta);
+    // worlds are keyed by name here and in RandomTickMetrics; both forget a world once it is unloaded
+    public void removeWorld(final ServerLevel level) {
+        final String name = level.getWorld().getName();
+        this.worlds.remove(name);
+        RandomTickMetrics.remove(name);
     }
 
-    private int computeInterval(final double tps, final double activationTps, final double minTps, final int maxInterval) {
-        if (maxInterval <= 1) {
-            return 1;
-        }
-
-        final double severity = this.computeSeverity(tps, activationTps, minTps);
-        if (severity <= 0.0D) {
-            return 1;
+    public void endWorldTick(final ServerLevel level) {
+        final WorldThrottle world = this.current;
+        if (world == null) {
+            return;
         }
 
-        final double intervalDelta = (maxInterval - 1) * severity;
-        final int additional = Math.max(0, (int)Math.round(intervalDelta));
-        return Math.min(maxInterval, 1 + additional);
+        this.worldNanosThisTick += world.end();
+        this.current = null;
     }
 
-    private double computeSeverity(final double tps, final double activationTps, final double minTps) {
-        final double clampedActivation = Math.max(0.0D, Math.min(20.0D, activationTps));
-        final double clampedMin = Math.max(0.0D, Math.min(clampedActivation, minTps));
+    public boolean measuring() {
+        final WorldThrottle world = this.current;
+        return world != null && world.measuring();
+    }
 
-        if (tps >= clampedActivation || clampedActivation <= clampedMin) {
-            return 0.0D;
+    public void recordEntityTick(final Entity entity, final long nanos) {
+        final WorldThrottle world = this.current;
+        if (world != null) {
+            world.recordEntityTick(entity, nanos);
         }
+    }
 
-        if (tps <= clampedMin) {
-            return 1.0D;
+    public void recordRandomTicks(final long nanos) {
+        final WorldThrottle world = this.current;
+        if (world != null) {
+            world.recordRandomTicks(nanos);
         }
+    }
 
-        return (clampedActivation - tps) / (clampedActivation - clampedMin);
+    // same result as scaleRandomTickSpeed, without counting suppressed ticks
+    public int effectiveRandomTickSpeed(final int baseTickSpeed) {
+        final WorldThrottle world = this.current;
+        return world == null ? baseTickSpeed : world.effectiveRandomTickSpeed(baseTickSpeed);
     }
 
     public int scaleRandomTickSpeed(final int baseTickSpeed) {
-        if (!TickThrottleModule.ENABLED || baseTickSpeed <= 0) {
-            return baseTickSpeed;
-        }
-
-        if (this.randomTickScale >= 0.999D) {
-            return baseTickSpeed;
-        }
+        final WorldThrottle world = this.current;
+        return world == null ? baseTickSpeed : world.scaleRandomTickSpeed(baseTickSpeed);
+    }
 
-        int scaled = (int)Math.round(baseTickSpeed * this.randomTickScale);
-        if (scaled <= 0 && this.randomTickScale > 0.0D) {
-            scaled = 1;
-        }
+    public @Nullable ThrottleCategory evaluateEntity(final Entity entity) {
+        final WorldThrottle world = this.current;
+        return world == null ? null : world.evaluateEntity(entity);
+    }
 
-        final int suppressed = Math.max(0, baseTickSpeed - scaled);
-        if (suppressed > 0) {
-            this.suppressedRandomTicks += suppressed;
-        }
-        return scaled;
+    public boolean shouldTickVillagerBrain(final Villager villager) {
+        final WorldThrottle world = this.current;
+        return world == null || world.shouldTickVillagerBrain(villager);
     }
 
-    public @Nullable ThrottleCategory evaluateMob(final Entity entity) {
-        if (!TickThrottleModule.ENABLED || !(entity instanceof Mob mob)) {
-            return null;
-        }
+    public boolean shouldSkipBlockEntity(final TickingBlockEntity ticker) {
+        final WorldThrottle world = this.current;
+        return world != null && world.shouldSkipBlockEntity(ticker);
+    }
 
-        final MobCategory category = mob.getType().getCategory();
-        if (category == MobCategory.MONSTER) {
-            if (!this.hostileAllowedThisTick && this.hostileInterval > 1) {
-                ++this.suppressedHostileTicks;
-                return ThrottleCategory.HOSTILE;
-            }
-        } else {
-            if (!this.passiveAllowedThisTick && this.passiveInterval > 1) {
-                ++this.suppressedPassiveTicks;
-                return ThrottleCategory.PASSIVE;
-            }
-        }
-        return null;
+    // leftover scheduled ticks stay queued in LevelTicks and run on the following ticks
+    public int scheduledTickLimit(final int baseLimit) {
+        final WorldThrottle world = this.current;
+        return world == null ? baseLimit : world.scheduledTickLimit(baseLimit);
     }
 
-    public TickThrottleMetrics snapshotMetrics() {
-        return new TickThrottleMetrics(
-                TickThrottleModule.ENABLED,
-                this.currentTps,
-                this.randomTickScale,
-                this.passiveInterval,
-                this.passiveAllowedThisTick,
-                this.hostileInterval,
-                this.hostileAllowedThisTick,
-                this.suppressedRandomTicks,
-                this.suppressedPassiveTicks,
-                this.suppressedHostileTicks
-        );
+    public List<TickThrottleMetrics> snapshotMetrics() {
+        final List<TickThrottleMetrics> metrics = new ArrayList<>(this.worlds.size());
+        for (final WorldThrottle world : this.worlds.values()) {
+            metrics.add(world.snapshotMetrics());
+        }
+        metrics.sort(Comparator.comparing(TickThrottleMetrics::world));
+        return metrics;
     }
 
     public enum ThrottleCategory {
         PASSIVE,
-        HOSTILE
+        HOSTILE,
+        SLICED
     }
 
-    public record TickThrottleMetrics(boolean enabled, double currentTps, double randomTickScale, int passiveInterval,
-                                      boolean passiveTickingThisRound, int hostileInterval,
-                                      boolean hostileTickingThisRound, long randomTicksSuppressed,
-                                      long passiveTicksSuppressed, long hostileTicksSuppressed) {
+    public record TickThrottleMetrics(String world, boolean enabled, TickThrottleModule.Mode mode,
+                                      double currentTps, double releaseTps, double sampleMspt, double predictedMspt,
+                                      double randomTickScale, int passiveInterval, int hostileInterval,
+                                      int blockEntityInterval, int villagerInterval, int scheduledTickLimit, int sliceWindow, int slicePositions,
+                                      long randomTicksSuppressed, long passiveTicksSuppressed, long hostileTicksSuppressed,
+                                      long blockEntityTicksSuppressed, long slicedTicksSuppressed, long villagerBrainTicksSuppressed,
+                                      int distanceSteps, int simulationDistance, int viewDistance) {
     }
 }
@@ -0,0 +1,619 @@
+package com.dractical.fembyte.perf;
+
+import ca.spottedleaf.moonrise.common.list.ReferenceList;
+import ca.spottedleaf.moonrise.common.misc.NearbyPlayers;
+import com.dractical.fembyte.config.modules.performance.DynamicDistanceModule;
+import com.dractical.fembyte.config.modules.performance.TickThrottleModule;
+import it.unimi.dsi.fastutil.HashCommon;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.core.GlobalPos;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.entity.Entity;
+import net.minecraft.world.entity.Mob;
+import net.minecraft.world.entity.MobCategory;
+import net.minecraft.world.entity.ai.memory.MemoryModuleType;
+import net.minecraft.world.entity.npc.Villager;
+import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.level.block.entity.TickingBlockEntity;
+
+import javax.annotation.Nullable;
+import java.util.Optional;
+
+// Throttle state of a single world. Driven by TickThrottleManager, which feeds it the world's own
+// tick time plus the share of the server tick that was not spent in any world.
+final class WorldThrottle {
+
+    private final String world;
+    private TickThrottleModule.WorldSettings settings = TickThrottleModule.DEFAULTS;
+    private boolean active;
+
+    private long tickStartNanos;
+    private long lastTickNanos;
+
+    private double currentTps = 20.0D;
+    private double sampleMspt = 0.0D;
+
+    // fast average drives engaging, slow average drives releasing
+    private double engageMspt = 0.0D;
+    private double releaseMspt = 0.0D;
+    private final IntervalController passiveController = new IntervalController();
+    private final IntervalController hostileController = new IntervalController();
+    private final IntervalController blockEntityController = new IntervalController();
+    private final IntervalController villagerController = new IntervalController();
+    private final ThrottleBudget budget = new ThrottleBudget();
+    private double predictedMspt = -1.0D;
+
+    private double randomTickScale = 1.0D;
+    private int passiveInterval = 1;
+    private int hostileInterval = 1;
+    private int blockEntityInterval = 1;
+    private int villagerInterval = 1;
+    private double scheduledSeverity = 0.0D;
+    private final DynamicDistance distance = new DynamicDistance();
+
+    // advanced once per server tick; a mob runs when (id + cursor) % interval == 0, so each tick
+    // handles about 1/interval of every throttled category instead of all of it every interval ticks
+    private long passiveCursor = 0L;
+    private long hostileCursor = 0L;
+    private long blockEntityCursor = 0L;
+
+    private long suppressedRandomTicks = 0L;
+    private long suppressedPassiveTicks = 0L;
+    private long suppressedHostileTicks = 0L;
+    private long suppressedBlockEntityTicks = 0L;
+    private long suppressedSlicedTicks = 0L;
+    private long suppressedVillagerBrainTicks = 0L;
+
+    // entity time slicing: entities are numbered in tick order, and only the window of positions starting at the
+    // cursor gets full ticks; the cursor continues at the first deferred entity, so deferred entities go first
+    private long sliceBudgetNanos;
+    private long sliceReservedNanos;
+    private long sliceSpentNanos;
+    private double sliceCostPerEntity;
+    private int sliceCursor;
+    private int slicePositions;
+    private int slicePosition;
+    private int sliceWindow = Integer.MAX_VALUE;
+    private int sliceFirstDenied = Integer.MAX_VALUE;
+
+    WorldThrottle(final String world) {
+        this.world = world;
+    }
+
+    void begin(final ServerLevel level, final int currentTick, final boolean runsNormally, final double sharedMspt) {
+        this.settings = TickThrottleModule.settingsFor(this.world);
+        this.sampleMspt = this.lastTickNanos / 1_000_000.0D + sharedMspt;
+        this.tickStartNanos = System.nanoTime();
+        this.active = this.settings.enabled() && runsNormally;
+        if (!this.active) {
+            if (!this.settings.enabled()) {
+                this.distance.restore(level);
+            }
+            this.resetState();
+            return;
+        }
+
+        this.refreshState(currentTick);
+        this.distance.update(
+                level,
+                currentTick,
+                this.currentTps < DynamicDistanceModule.ACTIVATION_TPS && this.throttleExhausted(),
+                toTps(this.releaseMspt) >= DynamicDistanceModule.RESTORE_TPS
+        );
+        this.beginSlice();
+    }
+
+    // distances are only touched once everything cheaper is already at its limit
+    private boolean throttleExhausted() {
+        return this.passiveInterval >= this.settings.passiveMaxInterval()
+                && this.hostileInterval >= this.settings.hostileMaxInterval()
+                && this.randomTickScale <= Math.max(0.0D, this.settings.randomMinScale()) + 0.001D;
+    }
+
+    private void beginSlice() {
+        final int positions = this.slicePosition;
+        if (positions <= 0) {
+            this.sliceCursor = 0;
+        } else if (this.sliceFirstDenied != Integer.MAX_VALUE) {
+            // offsets, not tick order: on a wrap the tail after the cursor can be denied while the wrapped head ran
+            this.sliceCursor = (int) ((this.sliceCursor + (long) this.sliceFirstDenied) % positions);
+        } else {
+            this.sliceCursor %= positions;
+        }
+        this.slicePositions = positions;
+        this.slicePosition = 0;
+        this.sliceSpentNanos = 0L;
+        this.sliceFirstDenied = Integer.MAX_VALUE;
+        this.sliceReservedNanos = 0L;
+        this.sliceBudgetNanos = TickThrottleModule.ENTITY_SLICE_BUDGET_NANOS;
+        if (this.sliceBudgetNanos <= 0L || positions == 0) {
+            this.sliceWindow = Integer.MAX_VALUE;
+            return;
+        }
+
+        final double cost = Math.max(1.0D, this.sliceCostPerEntity);
+        this.sliceWindow = (int) Math.max(1.0D, Math.min(positions, this.sliceBudgetNanos / cost));
+        if (this.sliceCursor + this.sliceWindow > positions) {
+            // the wrapped part of the window comes first in tick order, keep time for the entities it continues from
+            this.sliceReservedNanos = (long) ((positions - this.sliceCursor) * cost);
+        }
+    }
+
+    private boolean sliceAllows(final int position) {
+        final int positions = this.slicePositions;
+        final int offset = position < positions ? Math.floorMod(position - this.sliceCursor, positions) : position - this.sliceCursor;
+        final long cap = position < this.sliceCursor ? this.sliceBudgetNanos - this.sliceReservedNanos : this.sliceBudgetNanos;
+        if (offset >= this.sliceWindow || this.sliceSpentNanos >= cap) {
+            this.sliceFirstDenied = Math.min(this.sliceFirstDenied, offset);
+            return false;
+        }
+        return true;
+    }
+
+    long end() {
+        this.lastTickNanos = this.tickStartNanos == 0L ? 0L : System.nanoTime() - this.tickStartNanos;
+        this.tickStartNanos = 0L;
+        return this.lastTickNanos;
+    }
+
+    private void resetState() {
+        this.currentTps = 20.0D;
+        this.engageMspt = 0.0D;
+        this.releaseMspt = 0.0D;
+        this.passiveController.reset();
+        this.hostileController.reset();
+        this.blockEntityController.reset();
+        this.villagerController.reset();
+        this.budget.reset();
+        this.predictedMspt = -1.0D;
+        this.randomTickScale = 1.0D;
+        this.passiveInterval = 1;
+        this.hostileInterval = 1;
+        this.blockEntityInterval = 1;
+        this.villagerInterval = 1;
+        this.scheduledSeverity = 0.0D;
+        this.passiveCursor = 0L;
+        this.hostileCursor = 0L;
+        this.blockEntityCursor = 0L;
+        this.sliceBudgetNanos = 0L;
+        this.sliceCursor = 0;
+        this.slicePosition = 0;
+        this.sliceWindow = Integer.MAX_VALUE;
+        this.sliceFirstDenied = Integer.MAX_VALUE;
+    }
+
+    private void refreshState(final int currentTick) {
+        final TickThrottleModule.WorldSettings settings = this.settings;
+        final double sample = Math.min(this.sampleMspt, Math.max(1.0D, TickThrottleModule.CONTROLLER_MAX_SAMPLE_MSPT));
+        this.engageMspt = ewma(this.engageMspt, sample, TickThrottleModule.CONTROLLER_ENGAGE_WINDOW);
+        this.releaseMspt = ewma(this.releaseMspt, sample, TickThrottleModule.CONTROLLER_RELEASE_WINDOW);
+
+        final double engageTps = toTps(this.engageMspt);
+        // release decisions use the slow average, pushed down by the hysteresis margin
+        final double releaseTps = Math.max(0.0D, toTps(this.releaseMspt) - TickThrottleModule.CONTROLLER_RELEASE_MARGIN_TPS);
+        this.currentTps = engageTps;
+
+        final int engagePassive;
+        final int releasePassive;
+        final int engageHostile;
+        final int releaseHostile;
+        final double engageScale;
+        final double releaseScale;
+        if (settings.mode() == TickThrottleModule.Mode.BUDGET) {
+            this.budget.complete(sample, this.randomTickScale, TickThrottleModule.CONTROLLER_ENGAGE_WINDOW);
+            final ThrottleBudget.Plan engage = this.budget.plan(
+                    settings.budgetTargetMspt(),
+                    settings.passiveMaxInterval(),
+                    settings.hostileMaxInterval(),
+                    settings.randomMinScale()
+            );
+            // releasing has to fit under the target with headroom to spare
+            final ThrottleBudget.Plan release = this.budget.plan(
+                    settings.budgetTargetMspt() - TickThrottleModule.BUDGET_RELEASE_HEADROOM_MSPT,
+                    settings.passiveMaxInterval(),
+                    settings.hostileMaxInterval(),
+                    settings.randomMinScale()
+            );
+            this.predictedMspt = engage.predictedMspt();
+            engagePassive = engage.passiveInterval();
+            releasePassive = release.passiveInterval();
+            engageHostile = engage.hostileInterval();
+            releaseHostile = release.hostileInterval();
+            engageScale = engage.randomScale();
+            releaseScale = release.randomScale();
+        } else {
+            this.budget.reset();
+            this.predictedMspt = -1.0D;
+            engagePassive = computeInterval(engageTps, settings.passiveActivationTps(), settings.passiveMinTps(), settings.passiveMaxInterval());
+            releasePassive = computeInterval(releaseTps, settings.passiveActivationTps(), settings.passiveMinTps(), settings.passiveMaxInterval());
+            engageHostile = computeInterval(engageTps, settings.hostileActivationTps(), settings.hostileMinTps(), settings.hostileMaxInterval());
+            releaseHostile = computeInterval(releaseTps, settings.hostileActivationTps(), settings.hostileMinTps(), settings.hostileMaxInterval());
+            engageScale = computeScale(engageTps, settings.randomActivationTps(), settings.randomMinTps(), settings.randomMinScale());
+            releaseScale = computeScale(releaseTps, settings.randomActivationTps(), settings.randomMinTps(), settings.randomMinScale());
+        }
+
+        final double maxStep = Math.max(0.0D, TickThrottleModule.CONTROLLER_MAX_SCALE_STEP);
+        if (engageScale < this.randomTickScale) {
+            this.randomTickScale = Math.max(engageScale, this.randomTickScale - maxStep);
+        } else if (releaseScale > this.randomTickScale) {
+            this.randomTickScale = Math.min(releaseScale, this.randomTickScale + maxStep);
+        }
+
+        this.passiveInterval = this.passiveController.update(currentTick, engagePassive, releasePassive, settings.passiveMaxInterval());
+        this.hostileInterval = this.hostileController.update(currentTick, engageHostile, releaseHostile, settings.hostileMaxInterval());
+
+        // block entities and scheduled ticks are not part of the budget model and always follow TPS severity
+        this.blockEntityInterval = this.blockEntityController.update(
+                currentTick,
+                computeInterval(engageTps, TickThrottleModule.BLOCK_ENTITY_ACTIVATION_TPS, TickThrottleModule.BLOCK_ENTITY_MIN_TPS, TickThrottleModule.BLOCK_ENTITY_MAX_INTERVAL),
+                computeInterval(releaseTps, TickThrottleModule.BLOCK_ENTITY_ACTIVATION_TPS, TickThrottleModule.BLOCK_ENTITY_MIN_TPS, TickThrottleModule.BLOCK_ENTITY_MAX_INTERVAL),
+                TickThrottleModule.BLOCK_ENTITY_MAX_INTERVAL
+        );
+        this.villagerInterval = this.villagerController.update(
+                currentTick,
+                computeInterval(engageTps, TickThrottleModule.VILLAGER_ACTIVATION_TPS, TickThrottleModule.VILLAGER_MIN_TPS, TickThrottleModule.VILLAGER_MAX_INTERVAL),
+                computeInterval(releaseTps, TickThrottleModule.VILLAGER_ACTIVATION_TPS, TickThrottleModule.VILLAGER_MIN_TPS, TickThrottleModule.VILLAGER_MAX_INTERVAL),
+                TickThrottleModule.VILLAGER_MAX_INTERVAL
+        );
+        final double engageScheduled = computeSeverity(engageTps, TickThrottleModule.SCHEDULED_ACTIVATION_TPS, TickThrottleModule.SCHEDULED_MIN_TPS);
+        final double releaseScheduled = computeSeverity(releaseTps, TickThrottleModule.SCHEDULED_ACTIVATION_TPS, TickThrottleModule.SCHEDULED_MIN_TPS);
+        if (engageScheduled > this.scheduledSeverity) {
+            this.scheduledSeverity = Math.min(engageScheduled, this.scheduledSeverity + maxStep);
+        } else if (releaseScheduled < this.scheduledSeverity) {
+            this.scheduledSeverity = Math.max(releaseScheduled, this.scheduledSeverity - maxStep);
+        }
+
+        this.passiveCursor = this.passiveInterval <= 1 ? 0L : this.passiveCursor + 1L;
+        this.hostileCursor = this.hostileInterval <= 1 ? 0L : this.hostileCursor + 1L;
+        this.blockEntityCursor = this.blockEntityInterval <= 1 ? 0L : this.blockEntityCursor + 1L;
+    }
+
+    private static double ewma(final double current, final double sample, final int window) {
+        if (current <= 0.0D || window <= 1) {
+            return sample;
+        }
+        final double alpha = 2.0D / (window + 1.0D);
+        return current + alpha * (sample - current);
+    }
+
+    private static double toTps(final double mspt) {
+        return mspt <= 0.0D ? 20.0D : Math.max(0.0D, Math.min(20.0D, 1000.0D / Math.max(mspt, 0.0001D)));
+    }
+
+    private static double computeScale(final double tps, final double activationTps, final double minTps, final double minScale) {
+        final double severity = computeSeverity(tps, activationTps, minTps);
+        if (severity <= 0.0D) {
+            return 1.0D;
+        }
+
+        final double clampedMinScale = Math.max(0.0D, Math.min(1.0D, minScale));
+        final double delta = 1.0D - clampedMinScale;
+        return Math.max(clampedMinScale, 1.0D - severity * delta);
+    }
+
+    private static int computeInterval(final double tps, final double activationTps, final double minTps, final int maxInterval) {
+        if (maxInterval <= 1) {
+            return 1;
+        }
+
+        final double severity = computeSeverity(tps, activationTps, minTps);
+        if (severity <= 0.0D) {
+            return 1;
+        }
+
+        final double intervalDelta = (maxInterval - 1) * severity;
+        final int additional = Math.max(0, (int)Math.round(intervalDelta));
+        return Math.min(maxInterval, 1 + additional);
+    }
+
+    private static double computeSeverity(final double tps, final double activationTps, final double minTps) {
+        final double clampedActivation = Math.max(0.0D, Math.min(20.0D, activationTps));
+        final double clampedMin = Math.max(0.0D, Math.min(clampedActivation, minTps));
+
+        if (tps >= clampedActivation || clampedActivation <= clampedMin) {
+            return 0.0D;
+        }
+
+        if (tps <= clampedMin) {
+            return 1.0D;
+        }
+
+        return (clampedActivation - tps) / (clampedActivation - clampedMin);
+    }
+
+    boolean measuring() {
+        return this.active && (this.settings.mode() == TickThrottleModule.Mode.BUDGET || this.sliceBudgetNanos > 0L);
+    }
+
+    void recordEntityTick(final Entity entity, final long nanos) {
+        if (this.settings.mode() == TickThrottleModule.Mode.BUDGET && entity instanceof Mob mob) {
+            this.budget.recordMob(mob.getType().getCategory() == MobCategory.MONSTER, nanos);
+        }
+        if (this.sliceBudgetNanos > 0L && (entity instanceof Mob || TickThrottleModule.ENTITY_SLICE_NON_MOBS)) {
+            this.sliceSpentNanos += nanos;
+            this.sliceCostPerEntity = this.sliceCostPerEntity <= 0.0D ? nanos : this.sliceCostPerEntity + (nanos - this.sliceCostPerEntity) / 64.0D;
+        }
+    }
+
+    void recordRandomTicks(final long nanos) {
+        this.budget.recordRandom(nanos);
+    }
+
+    int effectiveRandomTickSpeed(final int baseTickSpeed) {
+        if (!this.active || baseTickSpeed <= 0 || this.randomTickScale >= 0.999D) {
+            return baseTickSpeed;
+        }
+
+        final int scaled = (int)Math.round(baseTickSpeed * this.randomTickScale);
+        return scaled <= 0 && this.randomTickScale > 0.0D ? 1 : scaled;
+    }
+
+    int scaleRandomTickSpeed(final int baseTickSpeed) {
+        final int scaled = this.effectiveRandomTickSpeed(baseTickSpeed);
+        final int suppressed = Math.max(0, baseTickSpeed - scaled);
+        if (suppressed > 0) {
+            this.suppressedRandomTicks += suppressed;
+        }
+        return scaled;
+    }
+
+    @Nullable TickThrottleManager.ThrottleCategory evaluateEntity(final Entity entity) {
+        if (entity instanceof Mob mob) {
+            return this.evaluateMob(mob);
+        }
+        if (!this.active || this.sliceBudgetNanos <= 0L || !TickThrottleModule.ENTITY_SLICE_NON_MOBS || sliceExempt(entity)) {
+            return null;
+        }
+
+        // non-mobs only take part in slicing, their inactive tick keeps ages and timers running
+        if (this.sliceAllows(this.slicePosition++)) {
+            return null;
+        }
+        ++this.suppressedSlicedTicks;
+        return TickThrottleManager.ThrottleCategory.SLICED;
+    }
+
+    // players and anything carrying passengers always tick, a deferred vehicle would stall its riders
+    private static boolean sliceExempt(final Entity entity) {
+        return entity instanceof Player || entity.isVehicle() || TickThrottleModule.isSliceExempt(entity.getType());
+    }
+
+    private @Nullable TickThrottleManager.ThrottleCategory evaluateMob(final Mob mob) {
+        final TickThrottleManager.ThrottleCategory category = this.evaluate(mob);
+        if (category != null) {
+            ++mob.fembyte$skippedTicks;
+        } else if (mob.fembyte$skippedTicks > 0) {
+            if (TickThrottleModule.CATCH_UP) {
+                ThrottleCatchUp.apply(mob, Math.min(mob.fembyte$skippedTicks, TickThrottleModule.CATCH_UP_MAX_TICKS));
+            }
+            mob.fembyte$skippedTicks = 0;
+        }
+        return category;
+    }
+
+    private @Nullable TickThrottleManager.ThrottleCategory evaluate(final Mob mob) {
+        if (!this.active) {
+            return null;
+        }
+
+        final boolean exempt = this.sliceBudgetNanos > 0L && sliceExempt(mob);
+        final int position = exempt ? -1 : this.slicePosition++;
+        final TickThrottleManager.ThrottleCategory category = this.evaluateCategory(mob);
+        if (category != null || exempt || this.sliceBudgetNanos <= 0L || this.sliceAllows(position)) {
+            return category;
+        }
+
+        ++this.suppressedSlicedTicks;
+        this.budget.recordSkipped(mob.getType().getCategory() == MobCategory.MONSTER);
+        return TickThrottleManager.ThrottleCategory.SLICED;
+    }
+
+    private @Nullable TickThrottleManager.ThrottleCategory evaluateCategory(final Mob mob) {
+        if (mob instanceof Villager && TickThrottleModule.VILLAGER_SEPARATE) {
+            // movement and physics stay at full rate, the brain has its own category
+            return null;
+        }
+
+        final boolean hostile = mob.getType().getCategory() == MobCategory.MONSTER;
+        int interval = hostile ? this.hostileInterval : this.passiveInterval;
+        if (interval <= 1) {
+            return null;
+        }
+
+        if (TickThrottleModule.DISTANCE_TIERS) {
+            interval = tieredInterval(mob, interval, hostile ? this.settings.hostileMaxInterval() : this.settings.passiveMaxInterval());
+            if (interval <= 1) {
+                return null;
+            }
+        }
+
+        if (hostile) {
+            if (!isBucketDue(mob, this.hostileCursor, interval)) {
+                ++this.suppressedHostileTicks;
+                this.budget.recordSkipped(true);
+                return TickThrottleManager.ThrottleCategory.HOSTILE;
+            }
+        } else {
+            if (!isBucketDue(mob, this.passiveCursor, interval)) {
+                ++this.suppressedPassiveTicks;
+                this.budget.recordSkipped(false);
+                return TickThrottleManager.ThrottleCategory.PASSIVE;
+            }
+        }
+        return null;
+    }
+
+    // near players (GENERAL_SMALL, 3 chunks) mobs keep full rate until lag is severe, mobs beyond the
+    // GENERAL map (9 chunks) get their interval multiplied; both lookups are a single chunk map hit
+    private static int tieredInterval(final Mob mob, final int interval, final int maxInterval) {
+        final NearbyPlayers nearbyPlayers = ((ServerLevel) mob.level()).moonrise$getNearbyPlayers();
+        final int chunkX = mob.getBlockX() >> 4;
+        final int chunkZ = mob.getBlockZ() >> 4;
+        if (hasPlayers(nearbyPlayers.getPlayersByChunk(chunkX, chunkZ, NearbyPlayers.NearbyMapType.GENERAL_SMALL))) {
+            final double severity = maxInterval <= 1 ? 0.0D : (interval - 1) / (double) (maxInterval - 1);
+            return severity >= TickThrottleModule.DISTANCE_NEAR_MIN_SEVERITY ? interval : 1;
+        }
+        if (hasPlayers(nearbyPlayers.getPlayersByChunk(chunkX, chunkZ, NearbyPlayers.NearbyMapType.GENERAL))) {
+            return interval;
+        }
+        return interval * Math.max(1, TickThrottleModule.DISTANCE_FAR_MULTIPLIER);
+    }
+
+    private static boolean hasPlayers(final @Nullable ReferenceList<ServerPlayer> players) {
+        return players != null && players.size() > 0;
+    }
+
+    boolean shouldTickVillagerBrain(final Villager villager) {
+        if (!this.brainDue(villager)) {
+            ++villager.fembyte$brainSkippedTicks;
+            return false;
+        }
+
+        if (villager.fembyte$brainSkippedTicks > 0) {
+            if (TickThrottleModule.CATCH_UP) {
+                ThrottleCatchUp.tickMemories(villager.getBrain(), Math.min(villager.fembyte$brainSkippedTicks, TickThrottleModule.CATCH_UP_MAX_TICKS));
+            }
+            villager.fembyte$brainSkippedTicks = 0;
+        }
+        return true;
+    }
+
+    private boolean brainDue(final Villager villager) {
+        if (!this.active || !TickThrottleModule.VILLAGER_SEPARATE) {
+            return true;
+        }
+
+        int interval = this.villagerInterval;
+        if (interval <= 1) {
+            // idle mode is part of the throttle; the idle streak starts over once villagers are throttled again
+            villager.fembyte$brainPos = Long.MIN_VALUE;
+            return true;
+        }
+
+        final long gameTime = villager.level().getGameTime();
+        final int idleAfter = TickThrottleModule.VILLAGER_IDLE_AFTER_TICKS;
+        if (idleAfter > 0) {
+            if (this.villagerActive(villager)) {
+                villager.fembyte$idleSince = gameTime;
+            } else if (gameTime - villager.fembyte$idleSince >= idleAfter) {
+                interval = Math.max(interval, TickThrottleModule.VILLAGER_IDLE_INTERVAL);
+            }
+        }
+        if (Math.floorMod(villager.getId() + gameTime, interval) == 0) {
+            return true;
+        }
+
+        ++this.suppressedVillagerBrainTicks;
+        return false;
+    }
+
+    // the job site is only looked up while the villager stays put and is not busy
+    private boolean villagerActive(final Villager villager) {
+        final long pos = villager.blockPosition().asLong();
+        if (pos != villager.fembyte$brainPos || villager.isTrading() || villager.hurtTime > 0) {
+            villager.fembyte$brainPos = pos;
+            return true;
+        }
+
+        final Optional<GlobalPos> jobSite = villager.getBrain().getMemory(MemoryModuleType.JOB_SITE);
+        final long jobSitePos = jobSite.isPresent() ? jobSite.get().pos().asLong() : Long.MIN_VALUE;
+        if (jobSitePos != villager.fembyte$brainJobSite) {
+            villager.fembyte$brainJobSite = jobSitePos;
+            return true;
+        }
+        return false;
+    }
+
+    boolean shouldSkipBlockEntity(final TickingBlockEntity ticker) {
+        final int interval = this.blockEntityInterval;
+        if (!this.active || interval <= 1) {
+            return false;
+        }
+
+        // scale the type's own max interval by how far the category has been throttled
+        final int typeMax = TickThrottleModule.blockEntityMaxInterval(ticker.fembyte$getBlockEntityType());
+        final int categoryMax = Math.max(2, TickThrottleModule.BLOCK_ENTITY_MAX_INTERVAL);
+        final int typeInterval = typeMax <= 1 ? 1 : 1 + (int) Math.round((typeMax - 1) * ((interval - 1) / (double) (categoryMax - 1)));
+        if (typeInterval <= 1 || Math.floorMod(HashCommon.mix(ticker.getPos().hashCode()) + this.blockEntityCursor, typeInterval) == 0) {
+            return false;
+        }
+
+        ++this.suppressedBlockEntityTicks;
+        return true;
+    }
+
+    int scheduledTickLimit(final int baseLimit) {
+        final double severity = this.scheduledSeverity;
+        if (!this.active || severity <= 0.0D) {
+            return baseLimit;
+        }
+
+        final int minLimit = Math.max(1, TickThrottleModule.SCHEDULED_MIN_LIMIT);
+        final int softLimit = Math.max(minLimit, TickThrottleModule.SCHEDULED_SOFT_LIMIT);
+        return Math.min(baseLimit, (int) Math.round(softLimit - (softLimit - minLimit) * severity));
+    }
+
+    private static boolean isBucketDue(final Mob mob, final long cursor, final int interval) {
+        return Math.floorMod(mob.getId() + cursor, interval) == 0;
+    }
+
+    TickThrottleManager.TickThrottleMetrics snapshotMetrics() {
+        return new TickThrottleManager.TickThrottleMetrics(
+                this.world,
+                this.active,
+                this.settings.mode(),
+                this.currentTps,
+                toTps(this.releaseMspt),
+                this.sampleMspt,
+                this.predictedMspt,
+                this.randomTickScale,
+                this.passiveInterval,
+                this.hostileInterval,
+                this.blockEntityInterval,
+                this.villagerInterval,
+                this.scheduledTickLimit(Integer.MAX_VALUE),
+                this.sliceBudgetNanos > 0L ? Math.min(this.sliceWindow, this.slicePositions) : -1,
+                this.slicePositions,
+                this.suppressedRandomTicks,
+                this.suppressedPassiveTicks,
+                this.suppressedHostileTicks,
+                this.suppressedBlockEntityTicks,
+                this.suppressedSlicedTicks,
+                this.suppressedVillagerBrainTicks,
+                this.distance.steps(),
+                this.distance.simulationDistance(),
+                this.distance.viewDistance()
+        );
+    }
+
+    // moves an interval one step at a time toward its target, with separate cooldowns for engaging and releasing
+    private static final class IntervalController {
+        private int interval = 1;
+        private long lastChangeTick = Long.MIN_VALUE;
+
+        int update(final long tick, final int engageTarget, final int releaseTarget, final int maxInterval) {
+            if (this.interval > Math.max(1, maxInterval)) {
+                this.interval = Math.max(1, maxInterval);
+            }
+
+            final long sinceChange = this.lastChangeTick == Long.MIN_VALUE ? Long.MAX_VALUE : tick - this.lastChangeTick;
+            if (engageTarget > this.interval) {
+                if (sinceChange >= TickThrottleModule.CONTROLLER_ENGAGE_COOLDOWN_TICKS) {
+                    ++this.interval;
+                    this.lastChangeTick = tick;
+                }
+            } else if (releaseTarget < this.interval) {
+                if (sinceChange >= TickThrottleModule.CONTROLLER_RELEASE_COOLDOWN_TICKS) {
+                    --this.interval;
+                    this.lastChangeTick = tick;
+                }
+            }
+            return this.interval;
+        }
+
+        void reset() {
+            this.interval = 1;
+            this.lastChangeTick = Long.MIN_VALUE;
+        }
+    }
+}
@@ -6,4 +6,4 @@ pluginManagement {
 }
 
 rootProject.name = "fembyte"
-include("fembyte-api", "fembyte-server")
+include("fembyte-api", "fembyte-server", "fembyte-benchmarks")